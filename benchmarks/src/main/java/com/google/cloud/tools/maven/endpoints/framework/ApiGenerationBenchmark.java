@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end discovery and OpenAPI generation for a synthetic API: loading the service class,
+ * building the API model and serializing it. Each invocation builds a new model, as a build does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ApiGenerationBenchmark {
+
+  private static final String SERVICE_CLASS = "com.example.bench.BenchApi";
+
+  @Param({"10", "100", "1000"})
+  private int methods;
+
+  private File workDir;
+  private ApiModel.Key key;
+  private final MavenExecutionRequest build = new DefaultMavenExecutionRequest();
+  private final SystemStreamLog log = new SystemStreamLog();
+
+  @Setup(Level.Trial)
+  public void compileApi() throws IOException {
+    workDir = Files.createTempDirectory("api-benchmark").toFile();
+    File sourceDir = new File(workDir, "src/com/example/bench");
+    File classesDir = new File(workDir, "classes");
+    sourceDir.mkdirs();
+    classesDir.mkdirs();
+    File source = new File(sourceDir, "BenchApi.java");
+    Files.write(source.toPath(), apiSource(methods).getBytes(StandardCharsets.UTF_8));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IllegalStateException("Benchmarks need a JDK to compile the synthetic API");
+    }
+    int result =
+        compiler.run(
+            null,
+            null,
+            null,
+            "-classpath",
+            System.getProperty("java.class.path"),
+            "-d",
+            classesDir.getAbsolutePath(),
+            source.getAbsolutePath());
+    if (result != 0) {
+      throw new IllegalStateException("Failed to compile the synthetic API");
+    }
+
+    // the endpoints framework is already on the benchmark classpath
+    key =
+        new ApiModel.Key(
+            Collections.<String>emptyList(),
+            classesDir,
+            new File(workDir, "webapp"),
+            Collections.singletonList(SERVICE_CLASS),
+            "bench.appspot.com",
+            null,
+            false);
+  }
+
+  @Benchmark
+  public Object discoveryDocs() throws Exception {
+    try (ApiModel model = load()) {
+      return model.getDiscoveryDocs();
+    }
+  }
+
+  @Benchmark
+  public Object openApiDoc() throws Exception {
+    try (ApiModel model = load()) {
+      return model.getOpenApiDoc();
+    }
+  }
+
+  private ApiModel load() throws Exception {
+    return ApiModel.load(key, build, new GoalMetrics("benchmark", "benchmarks"), log);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteApi() throws IOException {
+    ClassLoaderPool.closeAll();
+    MoreFiles.deleteRecursively(workDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  // an API with the given number of methods, one resource type per ten methods
+  private static String apiSource(int methods) {
+    StringBuilder source = new StringBuilder();
+    source.append("package com.example.bench;\n\n");
+    source.append("import com.google.api.server.spi.config.Api;\n");
+    source.append("import com.google.api.server.spi.config.ApiMethod;\n");
+    source.append("import com.google.api.server.spi.config.Named;\n\n");
+    source.append("@Api(name = \"bench\", version = \"v1\")\n");
+    source.append("public class BenchApi {\n");
+    int resources = (methods + 9) / 10;
+    for (int i = 0; i < resources; i++) {
+      source.append("  public static class Resource").append(i).append(" {\n");
+      source.append("    public String name;\n    public int count;\n");
+      source.append("    public java.util.List<String> tags;\n  }\n");
+    }
+    for (int i = 0; i < methods; i++) {
+      String resource = "Resource" + (i % resources);
+      // every method gets its own path, the default path is derived from the resource type
+      String name = (i % 2 == 0 ? "get" : "insert") + i;
+      source.append("  @ApiMethod(path = \"").append(name).append("\")\n");
+      if (i % 2 == 0) {
+        source.append("  public ").append(resource).append(" get").append(i);
+        source.append("(@Named(\"id\") String id) {\n    return null;\n  }\n");
+      } else {
+        source.append("  public ").append(resource).append(" insert").append(i);
+        source.append("(").append(resource).append(" body) {\n    return body;\n  }\n");
+      }
+    }
+    return source.append("}\n").toString();
+  }
+}
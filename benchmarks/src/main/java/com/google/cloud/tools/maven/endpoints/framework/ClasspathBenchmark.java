@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembly of the service class loader from a module's classpath, with the dependency loader
+ * already pooled by an earlier module of the build and from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClasspathBenchmark {
+
+  @Param({"10", "100", "500"})
+  private int jars;
+
+  private File workDir;
+  private List<String> classpath;
+  private File classesDir;
+  private final MavenExecutionRequest build = new DefaultMavenExecutionRequest();
+  private final SystemStreamLog log = new SystemStreamLog();
+
+  @Setup(Level.Trial)
+  public void createJars() throws IOException {
+    workDir = Files.createTempDirectory("classpath-benchmark").toFile();
+    classesDir = new File(workDir, "classes");
+    classesDir.mkdirs();
+    classpath = new ArrayList<>();
+    classpath.add(classesDir.getAbsolutePath());
+    for (int i = 0; i < jars; i++) {
+      File jar = new File(workDir, "dependency-" + i + ".jar");
+      try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+        out.putNextEntry(new ZipEntry("com/example/dependency" + i + "/"));
+      }
+      classpath.add(jar.getAbsolutePath());
+    }
+  }
+
+  /** Holds a lease like a module that is still being built, keeping the dependency loader open. */
+  @State(Scope.Benchmark)
+  public static class EarlierModule {
+    private ClassLoaderPool.Lease lease;
+
+    @Setup(Level.Trial)
+    public void acquire(ClasspathBenchmark benchmark) throws Exception {
+      lease = benchmark.acquire();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+      lease.close();
+    }
+  }
+
+  @Benchmark
+  public ClassLoader pooled(EarlierModule earlierModule) throws Exception {
+    try (ClassLoaderPool.Lease lease = acquire()) {
+      return lease.getClassLoader();
+    }
+  }
+
+  @Benchmark
+  public ClassLoader cold() throws Exception {
+    try (ClassLoaderPool.Lease lease = acquire()) {
+      return lease.getClassLoader();
+    }
+  }
+
+  private ClassLoaderPool.Lease acquire() throws Exception {
+    ApiModel.Key key =
+        new ApiModel.Key(
+            classpath,
+            classesDir,
+            new File(workDir, "webapp"),
+            Collections.singletonList("com.example.Api"),
+            null,
+            null,
+            false);
+    return ClassLoaderPool.acquire(
+        build, key.getSharedClassPath(), key.getModuleClassPath(), false, log);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteJars() throws IOException {
+    MoreFiles.deleteRecursively(workDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+}
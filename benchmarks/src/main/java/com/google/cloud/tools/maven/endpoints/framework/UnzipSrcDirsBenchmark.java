@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Extraction of src/main/java out of a generated client library archive, by 1 and 4 writers. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnzipSrcDirsBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  private int entries;
+
+  @Param({"1", "4"})
+  private int threads;
+
+  private File workDir;
+  private File archive;
+  private File destination;
+
+  @Setup(Level.Trial)
+  public void createArchive() throws IOException {
+    workDir = Files.createTempDirectory("unzip-benchmark").toFile();
+    archive = new File(workDir, "myapi-v1-java.zip");
+    // the same layout as the archives of the endpoints tool, sources next to build files
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive))) {
+      zip.putNextEntry(new ZipEntry("myapi/"));
+      zip.putNextEntry(new ZipEntry("myapi/pom.xml"));
+      zip.write("<project/>".getBytes(StandardCharsets.UTF_8));
+      for (int i = 0; i < entries; i++) {
+        String className = "Model" + i;
+        zip.putNextEntry(
+            new ZipEntry(
+                "myapi/src/main/java/com/example/myapi/model"
+                    + (i % 50)
+                    + "/"
+                    + className
+                    + ".java"));
+        zip.write(source(className).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void createDestination() throws IOException {
+    destination = Files.createTempDirectory(workDir.toPath(), "src").toFile();
+  }
+
+  @Benchmark
+  public File unzipSrcDirs() throws Exception {
+    // a new manifest for every invocation, so every source is written
+    GeneratedSourceManifest manifest =
+        GeneratedSourceManifest.load(new File(destination, "generateSrc.manifest"), destination);
+    try (SourceExtractor extractor = new SourceExtractor(manifest, threads, true, "benchmarks")) {
+      extractor.extract(archive, archive);
+    }
+    manifest.save();
+    return destination;
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteDestination() throws IOException {
+    MoreFiles.deleteRecursively(destination.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteArchive() throws IOException {
+    MoreFiles.deleteRecursively(workDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  // roughly the size of a generated model class
+  private static String source(String className) {
+    StringBuilder source = new StringBuilder("package com.example.myapi;\n\n");
+    source.append("public final class ").append(className).append(" {\n");
+    for (int i = 0; i < 20; i++) {
+      source.append("  private java.lang.String field").append(i).append(";\n");
+      source.append("  public java.lang.String getField").append(i).append("() {\n");
+      source.append("    return field").append(i).append(";\n  }\n");
+    }
+    return source.append("}\n").toString();
+  }
+}
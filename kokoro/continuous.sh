@@ -7,3 +7,4 @@ set -x
 
 cd github/endpoints-framework-maven-plugin
 ./mvnw clean install cobertura:cobertura -B -U
+./mvnw -B -f benchmarks/pom.xml compile
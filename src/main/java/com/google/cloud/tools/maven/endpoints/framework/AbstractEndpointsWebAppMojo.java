@@ -17,13 +17,50 @@
 
 package com.google.cloud.tools.maven.endpoints.framework;
 
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 
 public abstract class AbstractEndpointsWebAppMojo extends AbstractMojo {
 
+  // project context key of the ApiModel shared by the goals of a module
+  private static final String API_MODEL_CONTEXT_KEY = ApiModel.class.getName();
+
+  @Parameter(defaultValue = "${project}", readonly = true)
+  protected MavenProject project;
+
+  @Parameter(defaultValue = "${plugin}", readonly = true)
+  protected PluginDescriptor plugin;
+
+  @Parameter(defaultValue = "${session}", readonly = true)
+  protected MavenSession session;
+
+  // phase timings of the running goal, created by execute() and reported when it finishes
+  protected GoalMetrics metrics = new GoalMetrics("endpoints", "");
+
+  // those of the class loaders of the models the goal used, when static initializers are skipped
+  private final Set<StaticInitializerTimer.Initializers> staticInitializers = new LinkedHashSet<>();
+
   /** Location of compile java classes. */
   @Parameter(defaultValue = "${project.build.outputDirectory}", readonly = true)
   protected File classesDir;
@@ -32,6 +69,13 @@ public abstract class AbstractEndpointsWebAppMojo extends AbstractMojo {
   @Parameter(property = "endpoints.serviceClasses", required = false)
   protected List<String> serviceClasses;
 
+  /**
+   * Find the service classes by reading the Api and ApiClass annotations of the compiled classes
+   * when serviceClasses is not configured, instead of reading them from web.xml.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.scanServiceClasses")
+  protected boolean scanServiceClasses;
+
   /** Location of java web application "webapp" directory. */
   @Parameter(
     defaultValue = "${basedir}/src/main/webapp",
@@ -39,4 +83,249 @@ public abstract class AbstractEndpointsWebAppMojo extends AbstractMojo {
     required = true
   )
   protected File webappDir;
+
+  /**
+   * Only put the classpath elements the service classes reach on the endpoints tool's classpath,
+   * found by reading the references in their class files. Classes only loaded by name, such as
+   * through Class.forName, are not found, so this is off by default.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.pruneClasspath")
+  protected boolean pruneClasspath;
+
+  /**
+   * Load the module's own classes without running their static initializers, enums excepted, so
+   * introspection does not start the services they set up. Enums keep theirs, which run when an
+   * enum is first used, and each one kept is reported. The kept initializers that run while a goal
+   * uses the service classes, those of the dependencies included, are reported with their cost.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.skipStaticInitializers")
+  protected boolean skipStaticInitializers;
+
+  /**
+   * Get the introspected API model of this module. The model is kept in the project context, so the
+   * server goals of one module running in the same build share a single introspection pass as long
+   * as they agree on classpath, service classes, hostname and basePath. Modules with the same
+   * dependencies also share the class loader of those dependencies.
+   *
+   * @throws MojoExecutionException if no service classes are configured or listed in web.xml
+   */
+  protected ApiModel getApiModel(String hostname, String basePath) throws Exception {
+    return getApiModel(getApiModelKey(hostname, basePath));
+  }
+
+  /** Get the API model described by a key, see getApiModel(String, String). */
+  ApiModel getApiModel(ApiModel.Key key) throws Exception {
+    Object cached = project.getContextValue(API_MODEL_CONTEXT_KEY);
+    if (cached instanceof ApiModel) {
+      ApiModel cachedModel = (ApiModel) cached;
+      if (cachedModel.getKey().equals(key)) {
+        getLog().info("Reusing endpoints API model from an earlier goal");
+        staticInitializers.addAll(cachedModel.getStaticInitializers());
+        return cachedModel;
+      }
+      project.setContextValue(API_MODEL_CONTEXT_KEY, null);
+      cachedModel.close();
+    }
+
+    // parallel builds give every module its own copy of the session, but they share the request
+    ApiModel model = loadApiModel(key, session.getRequest());
+    if (model == null) {
+      throw new MojoExecutionException(
+          "No service classes found, configure serviceClasses or web.xml");
+    }
+    project.setContextValue(API_MODEL_CONTEXT_KEY, model);
+    return model;
+  }
+
+  /**
+   * Load an API model that is not kept in the project context, such as the model of some of the
+   * service classes, which other goals cannot use. The caller closes it.
+   */
+  ApiModel loadPartialApiModel(ApiModel.Key key) throws Exception {
+    return loadApiModel(key, session.getRequest());
+  }
+
+  /**
+   * Load the API model described by a key a second time, in class loaders of its own and without
+   * touching the model shared with other goals, so its outputs can be compared with the first.
+   */
+  ApiModel loadIndependentApiModel(ApiModel.Key key) throws Exception {
+    return loadApiModel(key, null);
+  }
+
+  // load a model and keep its static initializers for the report of the goal
+  private ApiModel loadApiModel(ApiModel.Key key, MavenExecutionRequest build) throws Exception {
+    ApiModel model = ApiModel.load(key, build, metrics, getLog());
+    if (model != null) {
+      staticInitializers.addAll(model.getStaticInitializers());
+    }
+    return model;
+  }
+
+  /**
+   * Fail if any written file differs from the bytes a second, independent generation produced.
+   *
+   * @param regenerated the expected content of each file
+   */
+  void verifyReproducible(Map<File, byte[]> regenerated) throws IOException, MojoFailureException {
+    List<String> differing = new ArrayList<>();
+    for (Map.Entry<File, byte[]> file : regenerated.entrySet()) {
+      if (!file.getKey().isFile()
+          || !Arrays.equals(Files.toByteArray(file.getKey()), file.getValue())) {
+        differing.add(file.getKey().getAbsolutePath());
+      }
+    }
+    if (!differing.isEmpty()) {
+      throw new MojoFailureException(
+          "Outputs are not reproducible, a second generation gave different bytes for "
+              + Joiner.on(", ").join(differing));
+    }
+    getLog().info("Verified that " + regenerated.size() + " outputs are reproducible");
+  }
+
+  /** Resolve the service classes and the classpath an API model is loaded from. */
+  ApiModel.Key getApiModelKey(String hostname, String basePath) throws Exception {
+    List<String> serviceClassNames = getServiceClasses();
+    try (GoalMetrics.Phase phase = metrics.start("classpath");
+        EndpointsEvents.Span span = EndpointsEvents.classpath(metrics.getModule())) {
+      ApiModel.Key key =
+          new ApiModel.Key(
+              project.getRuntimeClasspathElements(),
+              classesDir,
+              webappDir,
+              serviceClassNames,
+              hostname,
+              basePath,
+              skipStaticInitializers);
+      return pruneClasspath ? key.withClasspath(getPrunedClasspath(key)) : key;
+    }
+  }
+
+  /**
+   * The classpath elements the key's service classes reach. The result is kept with the fingerprint
+   * of the classes, dependencies and WEB-INF it was computed from and reused while they match.
+   */
+  private List<String> getPrunedClasspath(ApiModel.Key key) throws Exception {
+    List<String> serviceClassNames = key.getServiceClassNames(getLog());
+    if (serviceClassNames.isEmpty()) {
+      return key.getClasspath();
+    }
+    File prunedFile =
+        new File(project.getBuild().getDirectory(), "endpoints-framework/classpathPruning.txt");
+    UpToDateState state =
+        loadUpToDateState("classpathPruning")
+            .putParameter("resolvedServiceClasses", serviceClassNames);
+    List<String> pruned;
+    if (state.isUpToDate()) {
+      pruned = Files.readLines(prunedFile, StandardCharsets.UTF_8);
+      getLog()
+          .info(
+              "Reusing pruned classpath of "
+                  + pruned.size()
+                  + " of "
+                  + key.getClasspath().size()
+                  + " elements");
+      return pruned;
+    }
+    final long start = System.nanoTime();
+    pruned = ClasspathPruner.prune(key.getClasspath(), key.getModuleClassPath(), serviceClassNames);
+    Files.createParentDirs(prunedFile);
+    Files.asCharSink(prunedFile, StandardCharsets.UTF_8).writeLines(pruned);
+    state.save(Collections.singletonList(prunedFile));
+    getLog()
+        .info(
+            "Pruned classpath to "
+                + pruned.size()
+                + " of "
+                + key.getClasspath().size()
+                + " elements in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms");
+    return pruned;
+  }
+
+  /** The configured service classes, or those found by scanning the compiled classes. */
+  protected List<String> getServiceClasses() throws IOException {
+    if ((serviceClasses != null && !serviceClasses.isEmpty()) || !scanServiceClasses) {
+      return serviceClasses;
+    }
+    File cacheFile =
+        new File(project.getBuild().getDirectory(), "endpoints-framework/service-classes.cache");
+    long start = System.nanoTime();
+    List<String> found;
+    try (GoalMetrics.Phase phase = metrics.start("serviceClassScan")) {
+      found = ServiceClassScanner.scan(classesDir, cacheFile);
+    }
+    getLog()
+        .info(
+            "Found "
+                + found.size()
+                + " service classes in "
+                + classesDir.getAbsolutePath()
+                + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms");
+
+    // a misconfigured classesDir finds nothing, which must not pass for the web.xml list
+    List<String> webXmlServiceClasses = ApiModel.readWebXmlServiceClasses(webappDir, getLog());
+    if (found.isEmpty()) {
+      getLog()
+          .info(
+              "No service classes found by scanning, using the "
+                  + webXmlServiceClasses.size()
+                  + " listed in web.xml");
+      return found;
+    }
+    getLog().info("Using the service classes found by scanning the compiled classes");
+    if (!webXmlServiceClasses.isEmpty()
+        && !new HashSet<>(webXmlServiceClasses).equals(new HashSet<>(found))) {
+      Set<String> onlyScanned = new TreeSet<>(found);
+      onlyScanned.removeAll(webXmlServiceClasses);
+      Set<String> onlyInWebXml = new TreeSet<>(webXmlServiceClasses);
+      onlyInWebXml.removeAll(found);
+      getLog()
+          .warn(
+              "The scanned service classes differ from web.xml, only scanned: "
+                  + onlyScanned
+                  + ", only in web.xml: "
+                  + onlyInWebXml);
+    }
+    return found;
+  }
+
+  /**
+   * Write the metrics report of the goal into the build directory, and report the kept static
+   * initializers of the models it used that ran since they were last reported.
+   */
+  protected void reportMetrics() {
+    metrics.report(new File(project.getBuild().getDirectory()), getLog());
+    if (!staticInitializers.isEmpty()) {
+      StaticInitializerTimer.report(staticInitializers, getLog());
+      staticInitializers.clear();
+    }
+  }
+
+  /**
+   * Load the up-to-date state of a goal and fingerprint the inputs every server goal shares: the
+   * plugin version, service classes, compiled classes, runtime classpath and the WEB-INF
+   * configuration. Goals add their own parameters before checking it.
+   */
+  protected UpToDateState loadUpToDateState(String goal) throws Exception {
+    File stateFile =
+        new File(project.getBuild().getDirectory(), "endpoints-framework/" + goal + ".state");
+
+    // classesDir is on the runtime classpath, only hash it once
+    List<String> classpath = new ArrayList<>(project.getRuntimeClasspathElements());
+    classpath.remove(classesDir.getPath());
+    classpath.remove(classesDir.getAbsolutePath());
+
+    return UpToDateState.load(stateFile)
+        .putParameter("goal", goal)
+        .putParameter("pluginVersion", plugin.getVersion())
+        .putParameter("serviceClasses", serviceClasses)
+        .putParameter("scanServiceClasses", scanServiceClasses)
+        .putClasses(classesDir)
+        .putClasspath(classpath)
+        .putFiles(new File(webappDir, "WEB-INF"));
+  }
 }
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Goal which generates discovery docs, the openapi doc and client libraries from a single
+ * introspection of the service classes. The discovery docs and the openapi doc are serialized
+ * concurrently, and every API's discovery doc and client library is written on its own worker. The
+ * files are the same the discoveryDocs, openApiDocs and clientLibs goals write with the same
+ * parameters.
+ */
+@Mojo(
+  name = "apiArtifacts",
+  requiresDependencyResolution = ResolutionScope.COMPILE,
+  defaultPhase = LifecyclePhase.PREPARE_PACKAGE,
+  threadSafe = true
+)
+public class ApiArtifactsMojo extends AbstractEndpointsWebAppMojo {
+
+  static final String DISCOVERY_DOCS = "discoveryDocs";
+  static final String OPEN_API_DOCS = "openApiDocs";
+  static final String CLIENT_LIBS = "clientLibs";
+  private static final ImmutableSet<String> ARTIFACTS =
+      ImmutableSet.of(DISCOVERY_DOCS, OPEN_API_DOCS, CLIENT_LIBS);
+  private static final String API_DEPENDENCIES_PATH = "endpoints-framework/apiArtifacts.apis";
+
+  /** Artifacts to generate, any of discoveryDocs, openApiDocs and clientLibs. */
+  @Parameter(
+    defaultValue = "discoveryDocs,openApiDocs,clientLibs",
+    property = "endpoints.artifacts",
+    required = true
+  )
+  private List<String> artifacts;
+
+  /** Output directory for discovery docs. */
+  @Parameter(
+    defaultValue = "${project.build.directory}/discovery-docs",
+    property = "endpoints.discoveryDocDir",
+    required = true
+  )
+  private File discoveryDocDir;
+
+  /** Output directory for openapi docs. */
+  @Parameter(
+    defaultValue = "${project.build.directory}/openapi-docs",
+    property = "endpoints.openApiDocDir",
+    required = true
+  )
+  private File openApiDocDir;
+
+  /** Output directory for client libraries. */
+  @Parameter(
+    defaultValue = "${project.build.directory}/client-libs",
+    property = "endpoints.clientLibDir",
+    required = true
+  )
+  private File clientLibDir;
+
+  /** Default hostname of the Endpoint Host. */
+  @Parameter(property = "endpoints.hostname")
+  private String hostname;
+
+  /** Default basePath of the Endpoint Host. */
+  @Parameter(property = "endpoints.basePath")
+  private String basePath;
+
+  /** Also write a gzip compressed copy of every openapi document, next to it with a .gz suffix. */
+  @Parameter(defaultValue = "false", property = "endpoints.openApiDocGzip")
+  private boolean gzip;
+
+  /** Also write the openapi document as YAML, to openapi.yaml. */
+  @Parameter(defaultValue = "false", property = "endpoints.openApiDocYaml")
+  private boolean yaml;
+
+  /**
+   * Languages and build systems to generate client libraries for, as {@code
+   * <language>:<buildSystem>} such as {@code java:gradle}. Each pair is written to its own
+   * subdirectory of clientLibDir, {@code <language>-<buildSystem>}. When unset, java libraries for
+   * maven are written to clientLibDir itself.
+   */
+  @Parameter(property = "endpoints.clientLibTargets")
+  private List<String> clientLibTargets;
+
+  /**
+   * Skip generation when the inputs and outputs are unchanged since the last build, or when no API
+   * depends on the compiled classes that changed.
+   */
+  @Parameter(defaultValue = "true", property = "endpoints.incremental")
+  private boolean incremental;
+
+  /** Number of artifacts to write concurrently, defaults to the number of available processors. */
+  @Parameter(property = "endpoints.threads")
+  private Integer threads;
+
+  /** Reuse client libraries generated earlier from identical discovery docs. */
+  @Parameter(defaultValue = "true", property = "endpoints.clientLibCache")
+  private boolean clientLibCache;
+
+  /** Directory of the client library cache, shared between projects. */
+  @Parameter(
+    defaultValue = "${user.home}/.cache/endpoints-framework/client-libs",
+    property = "endpoints.clientLibCacheDir"
+  )
+  private File clientLibCacheDir;
+
+  /** Size limit of the client library cache in megabytes. */
+  @Parameter(defaultValue = "256", property = "endpoints.clientLibCacheSize")
+  private long clientLibCacheSize;
+
+  /**
+   * Timestamp of the entries of client library archives, ISO 8601 or seconds since the epoch. Every
+   * archive is rewritten with it and with sorted entries, so builds are reproducible.
+   */
+  @Parameter(
+    defaultValue = "${project.build.outputTimestamp}",
+    property = "endpoints.outputTimestamp"
+  )
+  private String outputTimestamp;
+
+  @Override
+  public void execute() throws MojoExecutionException {
+    metrics = new GoalMetrics("apiArtifacts", project.getArtifactId());
+    for (String artifact : artifacts) {
+      if (!ARTIFACTS.contains(artifact)) {
+        throw new MojoExecutionException(
+            "Unknown API artifact " + artifact + ", expected one of " + ARTIFACTS);
+      }
+    }
+    boolean writeDiscoveryDocs = artifacts.contains(DISCOVERY_DOCS);
+    boolean writeOpenApiDoc = artifacts.contains(OPEN_API_DOCS);
+    boolean writeClientLibs = artifacts.contains(CLIENT_LIBS);
+    Set<ClientLibGenerator.Target> targets;
+    try {
+      targets =
+          writeClientLibs
+              ? ClientLibGenerator.Target.parseAll(clientLibTargets)
+              : Collections.<ClientLibGenerator.Target>emptySet();
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
+    if (writeDiscoveryDocs) {
+      createOutputDirectory(discoveryDocDir);
+    }
+    if (writeOpenApiDoc) {
+      createOutputDirectory(openApiDocDir);
+    }
+    for (ClientLibGenerator.Target target : targets) {
+      createOutputDirectory(target.getOutputDir(clientLibDir, clientLibTargets));
+    }
+    OpenApiDocWriter openApiDocWriter =
+        new OpenApiDocWriter(openApiDocDir, gzip, yaml, metrics, getLog());
+
+    ExecutorService executor = null;
+    try {
+      if (artifacts.isEmpty()) {
+        return;
+      }
+      UpToDateState upToDateState = null;
+      ApiDependencies apiDependencies = null;
+      if (incremental) {
+        try (GoalMetrics.Phase phase = metrics.start("upToDateCheck")) {
+          upToDateState =
+              loadUpToDateState("apiArtifacts")
+                  .putParameter("artifacts", new TreeSet<>(artifacts))
+                  .putParameter("discoveryDocDir", discoveryDocDir.getAbsolutePath())
+                  .putParameter("openApiDocDir", openApiDocDir.getAbsolutePath())
+                  .putParameter("clientLibDir", clientLibDir.getAbsolutePath())
+                  .putParameter("hostname", hostname)
+                  .putParameter("basePath", basePath)
+                  .putParameter("gzip", gzip)
+                  .putParameter("yaml", yaml)
+                  .putParameter("clientLibTargets", targets)
+                  .putParameter("outputTimestamp", outputTimestamp);
+          if (upToDateState.isUpToDate()) {
+            getLog().info("API artifacts are up to date");
+            return;
+          }
+          // the same dependency record as openApiDocs, the openapi doc covers every API
+          if (upToDateState.areOutputsIntact()) {
+            apiDependencies = loadApiDependencies(upToDateState);
+          }
+        }
+      }
+
+      // written again unless no API depends on the changed classes
+      ApiModel.Key key = getApiModelKey(hostname, basePath);
+      if (apiDependencies != null) {
+        List<String> serviceClassNames = key.getServiceClassNames(getLog());
+        boolean changed;
+        try (GoalMetrics.Phase phase = metrics.start("dependencyCheck")) {
+          changed =
+              !apiDependencies
+                  .getServiceClassesToLoad(
+                      serviceClassNames, apiDependencies.getChangedApis(serviceClassNames))
+                  .isEmpty();
+        }
+        if (!changed) {
+          getLog().info("API artifacts are up to date, no API depends on the changed classes");
+          upToDateState.save(getOutputFiles(apiDependencies.getApis(), targets, openApiDocWriter));
+          return;
+        }
+      }
+
+      final ApiModel apiModel = getApiModel(key);
+
+      int poolSize =
+          threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+      executor =
+          Executors.newFixedThreadPool(
+              Math.max(1, poolSize),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("endpoints-apiArtifacts-%d")
+                  .setDaemon(true)
+                  .build());
+      CompletionService<Void> writes = new ExecutorCompletionService<>(executor);
+      int pendingWrites = 0;
+
+      // the openapi doc does not depend on the discovery docs, start it first
+      if (writeOpenApiDoc) {
+        writes.submit(
+            () -> {
+              try (GoalMetrics.Phase phase = metrics.start("openApiWrite")) {
+                openApiDocWriter.write(apiModel);
+              }
+              return null;
+            });
+        pendingWrites++;
+      }
+
+      if (writeDiscoveryDocs || writeClientLibs) {
+        Future<Map<String, String>> discoveryDocs =
+            executor.submit(
+                () -> {
+                  try (GoalMetrics.Phase phase = metrics.start("discoverySerialization")) {
+                    return apiModel.getDiscoveryDocs();
+                  }
+                });
+        ClientLibGenerator generator =
+            writeClientLibs
+                ? new ClientLibGenerator(
+                    clientLibCache
+                        ? new ClientLibCache(
+                            clientLibCacheDir, clientLibCacheSize * 1024 * 1024, getLog())
+                        : null,
+                    ClientLibCache.getToolVersion(plugin),
+                    ZipNormalizer.parseTimestamp(outputTimestamp),
+                    metrics,
+                    getLog())
+                : null;
+        for (Map.Entry<String, String> discoveryDoc : await(discoveryDocs).entrySet()) {
+          if (writeDiscoveryDocs) {
+            writes.submit(
+                () -> {
+                  File discoveryDocFile =
+                      new File(discoveryDocDir, discoveryDoc.getKey() + "-rest.discovery");
+                  try (GoalMetrics.Phase phase = metrics.start("write");
+                      EndpointsEvents.Span span =
+                          EndpointsEvents.fileWrite(
+                              metrics.getModule(), discoveryDoc.getKey(), discoveryDocFile)) {
+                    Files.asCharSink(discoveryDocFile, StandardCharsets.UTF_8)
+                        .write(discoveryDoc.getValue());
+                    span.setBytes(discoveryDocFile.length());
+                    getLog()
+                        .info(
+                            "API Discovery Document written to "
+                                + discoveryDocFile.getAbsolutePath());
+                  }
+                  return null;
+                });
+            pendingWrites++;
+          }
+          // every target of an API writes to its own directory
+          for (ClientLibGenerator.Target target : targets) {
+            writes.submit(
+                () -> {
+                  generator.generate(
+                      discoveryDoc.getKey(),
+                      discoveryDoc.getValue(),
+                      target,
+                      target.getOutputDir(clientLibDir, clientLibTargets));
+                  return null;
+                });
+            pendingWrites++;
+          }
+        }
+      }
+
+      // fail on the first error instead of waiting for the other artifacts
+      for (int i = 0; i < pendingWrites; i++) {
+        await(writes.take());
+      }
+
+      if (upToDateState != null) {
+        apiDependencies = loadApiDependencies(upToDateState);
+        Map<String, List<String>> serviceClassesByApi = apiModel.getServiceClassesByApi();
+        for (String api : apiDependencies.getApis()) {
+          if (!serviceClassesByApi.containsKey(api)) {
+            apiDependencies.remove(api);
+          }
+        }
+        for (Map.Entry<String, List<String>> api : serviceClassesByApi.entrySet()) {
+          apiDependencies.record(api.getKey(), api.getValue());
+        }
+        apiDependencies.save();
+        upToDateState.save(getOutputFiles(serviceClassesByApi.keySet(), targets, openApiDocWriter));
+      }
+
+    } catch (MojoExecutionException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while generating API artifacts", e);
+    } catch (Exception e) {
+      throw new MojoExecutionException("Endpoints Tool Error", e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      reportMetrics();
+    }
+  }
+
+  private ApiDependencies loadApiDependencies(UpToDateState upToDateState) {
+    return ApiDependencies.load(
+        new File(project.getBuild().getDirectory(), API_DEPENDENCIES_PATH),
+        classesDir,
+        upToDateState.getSharedFingerprint());
+  }
+
+  // the files written for the given APIs, client libraries the generator produced none for aside
+  private List<File> getOutputFiles(
+      Collection<String> apis,
+      Set<ClientLibGenerator.Target> targets,
+      OpenApiDocWriter openApiDocWriter) {
+    List<File> outputs = new ArrayList<>();
+    if (artifacts.contains(OPEN_API_DOCS)) {
+      outputs.addAll(openApiDocWriter.getOutputFiles());
+    }
+    for (String api : apis) {
+      if (artifacts.contains(DISCOVERY_DOCS)) {
+        outputs.add(new File(discoveryDocDir, api + "-rest.discovery"));
+      }
+      for (ClientLibGenerator.Target target : targets) {
+        File outputDir = target.getOutputDir(clientLibDir, clientLibTargets);
+        outputs.add(new File(outputDir, api + "-rest.discovery"));
+        File clientLib = new File(outputDir, api + "-" + target.getLanguage() + ".zip");
+        if (clientLib.isFile()) {
+          outputs.add(clientLib);
+        }
+      }
+    }
+    return outputs;
+  }
+
+  private static void createOutputDirectory(File directory) throws MojoExecutionException {
+    if (!directory.mkdirs() && !directory.isDirectory()) {
+      throw new MojoExecutionException(
+          "Failed to create output directory: " + directory.getAbsolutePath());
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws InterruptedException, MojoExecutionException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new MojoExecutionException("Endpoints Tool Error", e.getCause());
+    }
+  }
+}
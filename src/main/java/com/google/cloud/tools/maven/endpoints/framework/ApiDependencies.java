@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Records which compiled classes each generated API depends on, so a goal can generate only the
+ * APIs whose classes changed. The dependencies of an API are its service classes and every class of
+ * the module they reach through their class files: bean types, their fields, generic arguments,
+ * super classes and annotation values. The set is found by reading constant pools, so it can hold
+ * classes the API does not really use, which only costs an unneeded regeneration.
+ *
+ * <p>The record is a properties file. {@code shared} holds the fingerprint of the goal's inputs
+ * other than the compiled classes; when it differs every API is regenerated. For each API, {@code
+ * api.<name>.classes} lists its service classes, {@code api.<name>.dependencies} the internal names
+ * of the classes it depends on and {@code api.<name>.hash} a hash of their class files.
+ */
+class ApiDependencies {
+
+  private static final String SHARED = "shared";
+  private static final String API_PREFIX = "api.";
+  private static final String CLASSES_SUFFIX = ".classes";
+  private static final String DEPENDENCIES_SUFFIX = ".dependencies";
+  private static final String HASH_SUFFIX = ".hash";
+  private static final Splitter LIST_SPLITTER = Splitter.on(',').omitEmptyStrings();
+  private static final Joiner LIST_JOINER = Joiner.on(',');
+
+  private final File stateFile;
+  private final File classesDir;
+  private final Properties state;
+
+  private ApiDependencies(File stateFile, File classesDir, Properties state) {
+    this.stateFile = stateFile;
+    this.classesDir = classesDir;
+    this.state = state;
+  }
+
+  /**
+   * Read the record of the last run. A missing or unreadable record, or one made with other shared
+   * inputs, is treated as empty.
+   *
+   * @param sharedFingerprint the fingerprint of the inputs other than the compiled classes
+   */
+  static ApiDependencies load(File stateFile, File classesDir, String sharedFingerprint) {
+    Properties state = new Properties();
+    if (stateFile.isFile()) {
+      try (InputStream in = new FileInputStream(stateFile)) {
+        state.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        state.clear();
+      }
+    }
+    if (!sharedFingerprint.equals(state.getProperty(SHARED))) {
+      state.clear();
+      state.setProperty(SHARED, sharedFingerprint);
+    }
+    return new ApiDependencies(stateFile, classesDir, state);
+  }
+
+  /** An empty record kept in memory only, which cannot be saved. */
+  static ApiDependencies create(File classesDir) {
+    return new ApiDependencies(null, classesDir, new Properties());
+  }
+
+  /** The recorded APIs, named name-version like their discovery docs. */
+  Set<String> getApis() {
+    Set<String> apis = new TreeSet<>();
+    for (String name : state.stringPropertyNames()) {
+      if (name.startsWith(API_PREFIX) && name.endsWith(HASH_SUFFIX)) {
+        apis.add(name.substring(API_PREFIX.length(), name.length() - HASH_SUFFIX.length()));
+      }
+    }
+    return apis;
+  }
+
+  /**
+   * The recorded APIs that have to be generated again, because a class they depend on changed or
+   * one of their service classes is no longer configured.
+   */
+  Set<String> getChangedApis(Collection<String> serviceClasses) throws IOException {
+    Set<String> changed = new TreeSet<>();
+    for (String api : getApis()) {
+      if (!serviceClasses.containsAll(getServiceClasses(api))
+          || !hash(getList(api + DEPENDENCIES_SUFFIX)).equals(getProperty(api + HASH_SUFFIX))) {
+        changed.add(api);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * The recorded APIs that have to be generated again after the given classes changed: those
+   * depending on one of them whose class files differ from the recorded ones, and those with a
+   * service class that is no longer configured.
+   *
+   * @param changedClasses internal names of the classes that changed
+   */
+  Set<String> getChangedApis(Collection<String> serviceClasses, Set<String> changedClasses)
+      throws IOException {
+    Set<String> changed = new TreeSet<>();
+    for (String api : getApis()) {
+      if (!serviceClasses.containsAll(getServiceClasses(api))) {
+        changed.add(api);
+        continue;
+      }
+      List<String> dependencies = getList(api + DEPENDENCIES_SUFFIX);
+      if (!Collections.disjoint(dependencies, changedClasses)
+          && !hash(dependencies).equals(getProperty(api + HASH_SUFFIX))) {
+        changed.add(api);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * The service classes to load to generate the given APIs and the APIs of any service class that
+   * is not recorded yet.
+   */
+  List<String> getServiceClassesToLoad(List<String> serviceClasses, Set<String> apis) {
+    Set<String> recorded = new HashSet<>();
+    Set<String> needed = new HashSet<>();
+    for (String api : getApis()) {
+      List<String> apiServiceClasses = getServiceClasses(api);
+      recorded.addAll(apiServiceClasses);
+      if (apis.contains(api)) {
+        needed.addAll(apiServiceClasses);
+      }
+    }
+    List<String> toLoad = new ArrayList<>();
+    for (String serviceClass : serviceClasses) {
+      if (needed.contains(serviceClass) || !recorded.contains(serviceClass)) {
+        toLoad.add(serviceClass);
+      }
+    }
+    return toLoad;
+  }
+
+  /** The service classes of a recorded API. */
+  List<String> getServiceClasses(String api) {
+    return getList(api + CLASSES_SUFFIX);
+  }
+
+  /** Record the classes an API that was just generated depends on. */
+  void record(String api, Collection<String> serviceClasses) throws IOException {
+    Set<String> dependencies = new TreeSet<>();
+    Deque<String> pending = new ArrayDeque<>();
+    for (String serviceClass : serviceClasses) {
+      pending.add(serviceClass.replace('.', '/'));
+    }
+    while (!pending.isEmpty()) {
+      String className = pending.remove();
+      File classFile = getClassFile(className);
+      if (!classFile.isFile() || !dependencies.add(className)) {
+        continue;
+      }
+      for (String referenced : readReferencedClassNames(classFile)) {
+        if (!dependencies.contains(referenced)) {
+          pending.add(referenced);
+        }
+      }
+    }
+    state.setProperty(API_PREFIX + api + CLASSES_SUFFIX, LIST_JOINER.join(serviceClasses));
+    state.setProperty(API_PREFIX + api + DEPENDENCIES_SUFFIX, LIST_JOINER.join(dependencies));
+    state.setProperty(API_PREFIX + api + HASH_SUFFIX, hash(new ArrayList<>(dependencies)));
+  }
+
+  /** Forget an API that is no longer generated. */
+  void remove(String api) {
+    state.remove(API_PREFIX + api + CLASSES_SUFFIX);
+    state.remove(API_PREFIX + api + DEPENDENCIES_SUFFIX);
+    state.remove(API_PREFIX + api + HASH_SUFFIX);
+  }
+
+  void save() throws IOException {
+    Files.createParentDirs(stateFile);
+    try (OutputStream out = new FileOutputStream(stateFile)) {
+      state.store(out, null);
+    }
+  }
+
+  private String getProperty(String apiKey) {
+    return state.getProperty(API_PREFIX + apiKey);
+  }
+
+  private List<String> getList(String apiKey) {
+    String value = getProperty(apiKey);
+    return value == null ? new ArrayList<>() : LIST_SPLITTER.splitToList(value);
+  }
+
+  private File getClassFile(String internalName) {
+    return new File(classesDir, internalName + ".class");
+  }
+
+  // the content of the dependencies' class files, a missing class hashes differently than any
+  private String hash(List<String> dependencies) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (String dependency : dependencies) {
+      hasher.putString(dependency, StandardCharsets.UTF_8).putByte((byte) 0);
+      File classFile = getClassFile(dependency);
+      if (classFile.isFile()) {
+        hasher
+            .putByte((byte) 1)
+            .putBytes(Files.asByteSource(classFile).hash(Hashing.sha256()).asBytes());
+      } else {
+        hasher.putByte((byte) 0);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private static Set<String> readReferencedClassNames(File classFile) throws IOException {
+    try {
+      return ConstantPool.read(ByteBuffer.wrap(Files.toByteArray(classFile)))
+          .getReferencedClassNames();
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Malformed class file " + classFile.getAbsolutePath(), e);
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.api.server.spi.ObjectMapperUtil;
+import com.google.api.server.spi.ServiceContext;
+import com.google.api.server.spi.TypeLoader;
+import com.google.api.server.spi.config.ApiConfigException;
+import com.google.api.server.spi.config.ApiConfigLoader;
+import com.google.api.server.spi.config.ApiConfigSource;
+import com.google.api.server.spi.config.annotationreader.ApiConfigAnnotationReader;
+import com.google.api.server.spi.config.model.ApiConfig;
+import com.google.api.server.spi.config.model.ApiKey;
+import com.google.api.server.spi.config.model.SchemaRepository;
+import com.google.api.server.spi.config.validation.ApiConfigValidator;
+import com.google.api.server.spi.discovery.DiscoveryGenerator;
+import com.google.api.server.spi.discovery.DiscoveryGenerator.DiscoveryContext;
+import com.google.api.server.spi.response.EndpointsPrettyPrinter;
+import com.google.api.server.spi.swagger.SwaggerGenerator;
+import com.google.api.server.spi.swagger.SwaggerGenerator.SwaggerContext;
+import com.google.api.server.spi.tools.AppEngineUtil;
+import com.google.api.server.spi.tools.WebXml;
+import com.google.api.services.discovery.model.RestDescription;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimaps;
+import io.swagger.models.Swagger;
+import io.swagger.util.Json;
+import io.swagger.util.Yaml;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * The introspected API configuration of a module's service classes. Loading the service classes and
+ * reading their annotations is the expensive part of every server goal, so a model is built once
+ * per module and the goals only serialize it into their own formats.
+ */
+class ApiModel implements Closeable {
+
+  static final String DEFAULT_HOSTNAME = "myapi.appspot.com";
+  static final String DEFAULT_BASE_PATH = "/_ah/api";
+
+  private final Key key;
+  private final ClassLoaderPool.Lease classLoader;
+  private final TypeLoader typeLoader;
+  private final List<ApiConfig> apiConfigs;
+  private final String hostname;
+  private final String basePath;
+  // the module the model belongs to, carried by the flight recorder events of its generators
+  private final String module;
+
+  // serialized forms, computed on first use; the two formats are independent and have their own
+  // locks, so they can be generated concurrently
+  private final Object discoveryLock = new Object();
+  private final Object openApiLock = new Object();
+  private SchemaRepository schemaRepository;
+  private Map<String, String> discoveryDocs;
+  private Swagger openApi;
+  private String openApiDoc;
+
+  private ApiModel(
+      Key key,
+      ClassLoaderPool.Lease classLoader,
+      TypeLoader typeLoader,
+      List<ApiConfig> apiConfigs,
+      String hostname,
+      String basePath,
+      String module) {
+    this.key = key;
+    this.classLoader = classLoader;
+    this.typeLoader = typeLoader;
+    this.apiConfigs = apiConfigs;
+    this.hostname = hostname;
+    this.basePath = basePath;
+    this.module = module;
+  }
+
+  /**
+   * Load the service classes described by {@code key} and read their API configuration.
+   *
+   * @param build the request of the running build, class loaders for the same dependencies are
+   *     shared within it, or {@code null} to load every class again in loaders of its own
+   * @param metrics records the time spent loading classes and reading their configuration
+   * @return the model, or {@code null} if no service classes were configured or found in web.xml
+   */
+  static ApiModel load(Key key, MavenExecutionRequest build, GoalMetrics metrics, Log log)
+      throws IOException, ClassNotFoundException, ApiConfigException {
+    List<String> serviceClassNames = key.getServiceClassNames(log);
+    if (serviceClassNames.isEmpty()) {
+      return null;
+    }
+    String hostname = key.resolveHostname();
+    String basePath = Strings.isNullOrEmpty(key.basePath) ? DEFAULT_BASE_PATH : key.basePath;
+
+    ClassLoaderPool.Lease classLoader =
+        build == null
+            ? ClassLoaderPool.acquireIsolated(
+                key.getSharedClassPath(), key.getModuleClassPath(), key.skipStaticInitializers, log)
+            : ClassLoaderPool.acquire(
+                build,
+                key.getSharedClassPath(),
+                key.getModuleClassPath(),
+                key.skipStaticInitializers,
+                log);
+    try {
+      TypeLoader typeLoader;
+      List<Class<?>> serviceClasses = new ArrayList<>(serviceClassNames.size());
+      try (GoalMetrics.Phase phase = metrics.start("classLoading")) {
+        typeLoader = new TypeLoader(classLoader.getClassLoader());
+        for (String serviceClassName : serviceClassNames) {
+          try (EndpointsEvents.Span span =
+              EndpointsEvents.serviceClassLoading(metrics.getModule(), serviceClassName)) {
+            serviceClasses.add(classLoader.getClassLoader().loadClass(serviceClassName));
+          }
+        }
+      }
+
+      List<ApiConfig> apiConfigs = new ArrayList<>(serviceClasses.size());
+      try (GoalMetrics.Phase phase = metrics.start("modelBuilding")) {
+        ApiConfigLoader configLoader =
+            new ApiConfigLoader(
+                new ApiConfig.Factory(),
+                typeLoader,
+                new ApiConfigAnnotationReader(typeLoader.getAnnotationTypes()),
+                new ApiConfigSource[0]);
+        ServiceContext serviceContext =
+            ServiceContext.createFromHostname(hostname, ServiceContext.DEFAULT_API_NAME);
+        for (Class<?> serviceClass : serviceClasses) {
+          apiConfigs.add(configLoader.loadConfiguration(serviceContext, serviceClass));
+        }
+      }
+      return new ApiModel(
+          key,
+          classLoader,
+          typeLoader,
+          Collections.unmodifiableList(apiConfigs),
+          hostname,
+          basePath,
+          metrics.getModule());
+    } catch (ClassNotFoundException | ApiConfigException | RuntimeException e) {
+      classLoader.close();
+      throw e;
+    }
+  }
+
+  /**
+   * A model of the given service classes built from the configuration of models loaded earlier, so
+   * documents covering every API can be generated without loading their classes again. Each API
+   * keeps the class loader of the model it was taken from; those models must stay open while the
+   * combined one is used, and closing it closes none of them.
+   *
+   * @param serviceClassNames the service classes in the order of a model loading them all
+   * @param modelsByApi the model each API, named {@code <name>-<version>}, is taken from
+   * @throws IllegalArgumentException if no model holds the API of one of the service classes
+   */
+  static ApiModel combine(
+      Key key, List<String> serviceClassNames, Map<String, ApiModel> modelsByApi) {
+    Map<String, ApiConfig> configsByServiceClass = new HashMap<>();
+    for (Map.Entry<String, ApiModel> api : modelsByApi.entrySet()) {
+      for (ApiConfig apiConfig : api.getValue().apiConfigs) {
+        ApiKey apiKey = apiConfig.getApiKey();
+        // a model loaded earlier can still hold an older version of an API taken from another
+        if (api.getKey().equals(apiKey.getName() + "-" + apiKey.getVersion())) {
+          configsByServiceClass.put(apiConfig.getApiClassConfig().getApiClassJavaName(), apiConfig);
+        }
+      }
+    }
+    List<ApiConfig> apiConfigs = new ArrayList<>(serviceClassNames.size());
+    for (String serviceClassName : serviceClassNames) {
+      ApiConfig apiConfig = configsByServiceClass.get(serviceClassName);
+      if (apiConfig == null) {
+        throw new IllegalArgumentException("No model holds the API of " + serviceClassName);
+      }
+      apiConfigs.add(apiConfig);
+    }
+    ApiModel first = modelsByApi.values().iterator().next();
+    return new ApiModel(
+        key,
+        null,
+        first.typeLoader,
+        Collections.unmodifiableList(apiConfigs),
+        first.hostname,
+        first.basePath,
+        first.module);
+  }
+
+  Key getKey() {
+    return key;
+  }
+
+  /** The service classes listed in the web.xml of a webapp, empty if there is none. */
+  static List<String> readWebXmlServiceClasses(File webappDir, Log log) {
+    File webXml = new File(webappDir, "WEB-INF/web.xml");
+    if (webXml.exists()) {
+      try {
+        return WebXml.parse(webXml).endpointsServiceClasses();
+      } catch (Exception e) {
+        log.warn("Could not parse web.xml for service classes", e);
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * The service classes of every API in this model, keyed by {@code <name>-<version>} like the
+   * discovery documents.
+   */
+  Map<String, List<String>> getServiceClassesByApi() {
+    Map<String, List<String>> serviceClasses = new LinkedHashMap<>();
+    for (ApiConfig apiConfig : apiConfigs) {
+      ApiKey apiKey = apiConfig.getApiKey();
+      serviceClasses
+          .computeIfAbsent(apiKey.getName() + "-" + apiKey.getVersion(), api -> new ArrayList<>())
+          .add(apiConfig.getApiClassConfig().getApiClassJavaName());
+    }
+    return serviceClasses;
+  }
+
+  /** The names of the APIs in this model, comma separated, for events covering all of them. */
+  String getApiNames() {
+    return String.join(",", getServiceClassesByApi().keySet());
+  }
+
+  /**
+   * Discovery documents of every API in this model, keyed by {@code <name>-<version>} in the order
+   * the generator returns them. Each API is validated before its document is generated.
+   */
+  Map<String, String> getDiscoveryDocs() throws IOException, ApiConfigException {
+    synchronized (discoveryLock) {
+      if (discoveryDocs != null) {
+        return discoveryDocs;
+      }
+      SchemaRepository schemas = getSchemaRepository();
+      DiscoveryContext context = new DiscoveryContext().setHostname(hostname).setBasePath(basePath);
+      DiscoveryGenerator.Result result;
+      try (EndpointsEvents.Span span =
+          EndpointsEvents.documentGeneration(module, this, "discoveryModel")) {
+        result = new DiscoveryGenerator(typeLoader).writeDiscovery(apiConfigs, context, schemas);
+      }
+
+      ObjectWriter writer =
+          ObjectMapperUtil.createStandardObjectMapper()
+              .writer(new EndpointsPrettyPrinter())
+              .with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+      Map<String, String> docs = new LinkedHashMap<>();
+      for (Map.Entry<ApiKey, RestDescription> entry : result.discoveryDocs().entrySet()) {
+        ApiKey apiKey = entry.getKey();
+        String api = apiKey.getName() + "-" + apiKey.getVersion();
+        try (EndpointsEvents.Span span =
+            EndpointsEvents.documentGeneration(module, api, "discovery")) {
+          docs.put(api, writer.writeValueAsString(entry.getValue()));
+        }
+      }
+      discoveryDocs = Collections.unmodifiableMap(docs);
+      return discoveryDocs;
+    }
+  }
+
+  /**
+   * The OpenAPI document covering every API in this model, serialized once and kept for the goals
+   * that compare or hold its text. Goals that only write it use writeOpenApiDoc.
+   */
+  String getOpenApiDoc() throws IOException, ApiConfigException {
+    synchronized (openApiLock) {
+      if (openApiDoc == null) {
+        openApiDoc = getOpenApiWriter(false).writeValueAsString(getOpenApi());
+      }
+      return openApiDoc;
+    }
+  }
+
+  /**
+   * Stream the OpenAPI document covering every API in this model, without holding its text in
+   * memory.
+   *
+   * @param yaml write YAML instead of JSON
+   */
+  void writeOpenApiDoc(OutputStream out, boolean yaml) throws IOException, ApiConfigException {
+    getOpenApiWriter(yaml)
+        .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .writeValue(out, getOpenApi());
+  }
+
+  // the generators fill some maps in reflection order, sort them so builds are reproducible
+  private static ObjectWriter getOpenApiWriter(boolean yaml) {
+    ObjectWriter writer =
+        yaml ? Yaml.mapper().writer() : Json.mapper().writer(new EndpointsPrettyPrinter());
+    return writer.with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+  }
+
+  private Swagger getOpenApi() throws ApiConfigException {
+    synchronized (openApiLock) {
+      if (openApi == null) {
+        SwaggerContext context = new SwaggerContext().setHostname(hostname).setBasePath(basePath);
+        try (EndpointsEvents.Span span =
+            EndpointsEvents.documentGeneration(module, this, "openApiModel")) {
+          openApi = new SwaggerGenerator().writeSwagger(apiConfigs, true, context);
+        }
+      }
+      return openApi;
+    }
+  }
+
+  private SchemaRepository getSchemaRepository() throws ApiConfigException {
+    if (schemaRepository == null) {
+      SchemaRepository schemas = new SchemaRepository(typeLoader);
+      ApiConfigValidator validator = new ApiConfigValidator(typeLoader, schemas);
+      ImmutableListMultimap<ApiKey, ApiConfig> configsByKey =
+          Multimaps.index(apiConfigs, ApiConfig::getApiKey);
+      for (ApiKey apiKey : configsByKey.keySet()) {
+        validator.validate(configsByKey.get(apiKey));
+      }
+      schemaRepository = schemas;
+    }
+    return schemaRepository;
+  }
+
+  /**
+   * The static initializers kept by the model's class loaders, see skipStaticInitializers. A model
+   * combined from others has none of its own.
+   */
+  List<StaticInitializerTimer.Initializers> getStaticInitializers() {
+    List<StaticInitializerTimer.Initializers> initializers = new ArrayList<>();
+    if (classLoader != null) {
+      for (ClassLoader loader = classLoader.getClassLoader();
+          loader != null;
+          loader = loader.getParent()) {
+        if (loader instanceof InitializerTimingClassLoader) {
+          initializers.add(((InitializerTimingClassLoader) loader).getInitializers());
+        }
+      }
+    }
+    return initializers;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // a combined model borrows the loaders of the models it was built from
+    if (classLoader != null) {
+      classLoader.close();
+    }
+  }
+
+  /** Everything that determines the content of an ApiModel. */
+  static final class Key {
+    private final ImmutableList<String> classpath;
+    private final File classesDir;
+    private final File webappDir;
+    private final ImmutableList<String> serviceClasses;
+    private final String hostname;
+    private final String basePath;
+    private final boolean skipStaticInitializers;
+
+    Key(
+        List<String> classpath,
+        File classesDir,
+        File webappDir,
+        List<String> serviceClasses,
+        String hostname,
+        String basePath,
+        boolean skipStaticInitializers) {
+      this.classpath = ImmutableList.copyOf(classpath);
+      this.classesDir = classesDir.getAbsoluteFile();
+      this.webappDir = webappDir.getAbsoluteFile();
+      this.serviceClasses =
+          serviceClasses == null
+              ? ImmutableList.<String>of()
+              : ImmutableList.copyOf(serviceClasses);
+      this.hostname = Strings.nullToEmpty(hostname);
+      this.basePath = Strings.nullToEmpty(basePath);
+      this.skipStaticInitializers = skipStaticInitializers;
+    }
+
+    // the runtime classpath without the compiled classes, usually the same for many modules
+    List<File> getSharedClassPath() {
+      List<File> files = new ArrayList<>();
+      for (String element : classpath) {
+        File file = new File(element).getAbsoluteFile();
+        if (!file.equals(classesDir)) {
+          files.add(file);
+        }
+      }
+      return files;
+    }
+
+    // mirrors the endpoints tool: WEB-INF/classes, WEB-INF/lib/*.jar, then the compiled classes
+    List<File> getModuleClassPath() {
+      List<File> files = new ArrayList<>();
+      File webInf = new File(webappDir, "WEB-INF");
+      files.add(new File(webInf, "classes"));
+      File[] libs = new File(webInf, "lib").listFiles();
+      if (libs != null) {
+        Arrays.sort(libs);
+        for (File lib : libs) {
+          if (lib.isFile() && lib.getName().endsWith(".jar")) {
+            files.add(lib);
+          }
+        }
+      }
+      files.add(classesDir);
+      return files;
+    }
+
+    List<String> getClasspath() {
+      return classpath;
+    }
+
+    /** A key for the same module with another classpath, such as a pruned one. */
+    Key withClasspath(List<String> classpath) {
+      return new Key(
+          classpath,
+          classesDir,
+          webappDir,
+          serviceClasses,
+          hostname,
+          basePath,
+          skipStaticInitializers);
+    }
+
+    /** A key for the same module with only some of its service classes. */
+    Key withServiceClasses(List<String> serviceClasses) {
+      return new Key(
+          classpath,
+          classesDir,
+          webappDir,
+          serviceClasses,
+          hostname,
+          basePath,
+          skipStaticInitializers);
+    }
+
+    /** The configured service classes, or those listed in web.xml. */
+    List<String> getServiceClassNames(Log log) {
+      if (!serviceClasses.isEmpty()) {
+        return serviceClasses;
+      }
+      return readWebXmlServiceClasses(webappDir, log);
+    }
+
+    private String resolveHostname() {
+      if (!hostname.isEmpty()) {
+        return hostname;
+      }
+      String appHostname = AppEngineUtil.getApplicationDefaultHostname(webappDir.getPath());
+      return appHostname != null ? appHostname : DEFAULT_HOSTNAME;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return classpath.equals(other.classpath)
+          && classesDir.equals(other.classesDir)
+          && webappDir.equals(other.webappDir)
+          && serviceClasses.equals(other.serviceClasses)
+          && hostname.equals(other.hostname)
+          && basePath.equals(other.basePath)
+          && skipStaticInitializers == other.skipStaticInitializers;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          classpath,
+          classesDir,
+          webappDir,
+          serviceClasses,
+          hostname,
+          basePath,
+          skipStaticInitializers);
+    }
+  }
+}
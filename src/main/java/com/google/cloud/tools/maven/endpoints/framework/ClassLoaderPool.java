@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.collect.ImmutableList;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Class loaders for service classes, shared by every module of a build. Dependencies are loaded by
+ * a parent loader keyed by the ordered list of classpath entries, so modules with the same
+ * dependencies open their jars and define their classes once, and each module's own classes are
+ * loaded by a small child loader on top of it. When the module's classes are loaded without their
+ * static initializers, the parent times the initializers of the dependencies so those that run can
+ * be reported, and is pooled apart from the parents of other modules.
+ *
+ * <p>Parent loaders are reference counted by the leases handed out and closed when their last lease
+ * is released. Leases still open when the build ends are closed by {@link
+ * EndpointsLifecycleParticipant}. If the plugin is not registered as an extension, the loaders of a
+ * finished build are closed by the first lease of the next build in the same JVM.
+ */
+final class ClassLoaderPool {
+
+  private static final Map<List<?>, SharedLoader> sharedLoaders = new HashMap<>();
+  private static final Set<Lease> leases = new LinkedHashSet<>();
+
+  // the build the pooled loaders belong to
+  private static WeakReference<MavenExecutionRequest> owner = new WeakReference<>(null);
+
+  private ClassLoaderPool() {}
+
+  /**
+   * Lease a class loader for a module.
+   *
+   * @param build the request of the build, which every module of a parallel build shares; loaders
+   *     pooled for any other build are closed first
+   * @param sharedClassPath the dependencies, loaded by a pooled parent loader
+   * @param moduleClassPath the module's own classes, loaded by a child loader of this lease
+   * @param skipStaticInitializers load the module's own classes without their static initializers,
+   *     and time the initializers that are kept
+   * @param log reports the static initializers that are kept
+   */
+  static synchronized Lease acquire(
+      MavenExecutionRequest build,
+      List<File> sharedClassPath,
+      List<File> moduleClassPath,
+      boolean skipStaticInitializers,
+      Log log)
+      throws MalformedURLException {
+    if (owner.get() != build) {
+      closeAll();
+      owner = new WeakReference<>(build);
+    }
+
+    URL[] moduleUrls = toUrls(moduleClassPath);
+    List<?> key = ImmutableList.of(ImmutableList.copyOf(sharedClassPath), skipStaticInitializers);
+    SharedLoader shared = sharedLoaders.get(key);
+    if (shared == null) {
+      shared =
+          new SharedLoader(createSharedLoader(toUrls(sharedClassPath), skipStaticInitializers));
+      sharedLoaders.put(key, shared);
+    }
+    Lease lease =
+        new Lease(
+            shared, createModuleLoader(moduleUrls, shared.loader, skipStaticInitializers, log));
+    shared.references++;
+    leases.add(lease);
+    return lease;
+  }
+
+  /**
+   * Lease a class loader that shares nothing with the pool, so classes are loaded and initialized
+   * once more. Closing the lease closes both of its loaders.
+   */
+  static synchronized Lease acquireIsolated(
+      List<File> sharedClassPath,
+      List<File> moduleClassPath,
+      boolean skipStaticInitializers,
+      Log log)
+      throws MalformedURLException {
+    SharedLoader shared =
+        new SharedLoader(createSharedLoader(toUrls(sharedClassPath), skipStaticInitializers));
+    Lease lease =
+        new Lease(
+            shared,
+            createModuleLoader(
+                toUrls(moduleClassPath), shared.loader, skipStaticInitializers, log));
+    shared.references++;
+    leases.add(lease);
+    return lease;
+  }
+
+  /** Release every open lease, which closes all pooled loaders. */
+  static synchronized void closeAll() {
+    for (Lease lease : new ArrayList<>(leases)) {
+      lease.close();
+    }
+  }
+
+  private static synchronized void release(Lease lease) {
+    if (leases.remove(lease)) {
+      closeQuietly(lease.loader);
+      SharedLoader shared = lease.shared;
+      if (--shared.references == 0) {
+        sharedLoaders.values().remove(shared);
+        closeQuietly(shared.loader);
+      }
+    }
+  }
+
+  private static URLClassLoader createSharedLoader(URL[] urls, boolean skipStaticInitializers) {
+    ClassLoader parent = ClassLoaderPool.class.getClassLoader();
+    return skipStaticInitializers
+        ? new InitializerTimingClassLoader(urls, parent)
+        : new URLClassLoader(urls, parent);
+  }
+
+  private static URLClassLoader createModuleLoader(
+      URL[] urls, ClassLoader parent, boolean skipStaticInitializers, Log log) {
+    return skipStaticInitializers
+        ? new NonInitializingClassLoader(urls, parent, log)
+        : new URLClassLoader(urls, parent);
+  }
+
+  private static URL[] toUrls(List<File> classPath) throws MalformedURLException {
+    URL[] urls = new URL[classPath.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = classPath.get(i).toURI().toURL();
+    }
+    return urls;
+  }
+
+  private static void closeQuietly(URLClassLoader loader) {
+    try {
+      loader.close();
+    } catch (IOException e) {
+      // nothing else holds the jars, the JVM releases them on exit
+    }
+  }
+
+  private static final class SharedLoader {
+    private final URLClassLoader loader;
+    private int references;
+
+    private SharedLoader(URLClassLoader loader) {
+      this.loader = loader;
+    }
+  }
+
+  /** A module's class loader, closing it releases the module's reference to the shared parent. */
+  static final class Lease implements Closeable {
+    private final SharedLoader shared;
+    private final URLClassLoader loader;
+
+    private Lease(SharedLoader shared, URLClassLoader loader) {
+      this.shared = shared;
+      this.loader = loader;
+    }
+
+    ClassLoader getClassLoader() {
+      return loader;
+    }
+
+    @Override
+    public void close() {
+      release(this);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the classpath elements the service classes can reach, so the endpoints tool only opens the
+ * jars it needs. Starting at the service classes, every class file is read for the classes its
+ * constant pool refers to: signatures, bean types, annotation values and the classes used by method
+ * bodies. A class is looked up in the order the module's class loader delegates, the classpath in
+ * order first and then the module's own classes, and the element that defines it is kept. A class
+ * both the module and a dependency define is therefore resolved from the dependency, as it is when
+ * the service classes are loaded.
+ *
+ * <p>No class is loaded. Classes only named by strings, such as those found through {@code
+ * Class.forName} or service loaders, are not seen, which is why pruning is optional.
+ */
+final class ClasspathPruner {
+
+  private ClasspathPruner() {}
+
+  /**
+   * Prune a classpath for some service classes.
+   *
+   * @param classpath the elements to prune, in lookup order
+   * @param moduleClassPath the module's own classes, searched after the classpath and never pruned
+   * @param serviceClasses binary names of the classes to start from
+   * @return the elements of the classpath that define a reachable class, in their original order
+   */
+  static List<String> prune(
+      List<String> classpath, List<File> moduleClassPath, List<String> serviceClasses)
+      throws IOException {
+    // the module's loader asks its parent first, a module element also on the classpath is kept
+    Map<File, String> elements = new LinkedHashMap<>();
+    for (String element : classpath) {
+      elements.putIfAbsent(new File(element).getAbsoluteFile(), element);
+    }
+    for (File file : moduleClassPath) {
+      elements.put(file.getAbsoluteFile(), null);
+    }
+
+    List<ClassSource> sources = new ArrayList<>();
+    try {
+      for (Map.Entry<File, String> element : elements.entrySet()) {
+        sources.add(ClassSource.open(element.getKey(), element.getValue()));
+      }
+      Set<String> visited = new HashSet<>();
+      Deque<String> pending = new ArrayDeque<>();
+      for (String serviceClass : serviceClasses) {
+        pending.add(serviceClass.replace('.', '/'));
+      }
+      while (!pending.isEmpty()) {
+        String className = pending.remove();
+        // platform classes are never on the classpath
+        if (className.startsWith("java/") || !visited.add(className)) {
+          continue;
+        }
+        for (ClassSource source : sources) {
+          byte[] classFile = source.read(className + ".class");
+          if (classFile != null) {
+            source.used = true;
+            pending.addAll(getReferencedClassNames(classFile));
+            break;
+          }
+        }
+      }
+
+      List<String> pruned = new ArrayList<>();
+      for (String element : classpath) {
+        File file = new File(element).getAbsoluteFile();
+        ClassSource source = find(sources, file);
+        // a module element, or one that could not be read, is kept
+        if (source == null || source.used || source.element == null || source.unreadable) {
+          pruned.add(element);
+        }
+      }
+      return pruned;
+    } finally {
+      for (ClassSource source : sources) {
+        source.close();
+      }
+    }
+  }
+
+  private static ClassSource find(List<ClassSource> sources, File file) {
+    for (ClassSource source : sources) {
+      if (source.file.equals(file)) {
+        return source;
+      }
+    }
+    return null;
+  }
+
+  private static Set<String> getReferencedClassNames(byte[] classFile) {
+    try {
+      return ConstantPool.read(ByteBuffer.wrap(classFile)).getReferencedClassNames();
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      // the class loader will reject it too, it is kept but not followed
+      return Collections.emptySet();
+    }
+  }
+
+  /** A directory or jar on the classpath. */
+  private static final class ClassSource implements Closeable {
+    private final File file;
+    // the classpath element, null for the module's own classes
+    private final String element;
+    private final ZipFile jar;
+    private final boolean unreadable;
+    private boolean used;
+
+    private ClassSource(File file, String element, ZipFile jar, boolean unreadable) {
+      this.file = file;
+      this.element = element;
+      this.jar = jar;
+      this.unreadable = unreadable;
+    }
+
+    static ClassSource open(File file, String element) {
+      if (!file.isFile()) {
+        return new ClassSource(file, element, null, false);
+      }
+      try {
+        return new ClassSource(file, element, new ZipFile(file), false);
+      } catch (IOException e) {
+        return new ClassSource(file, element, null, true);
+      }
+    }
+
+    // the class file's bytes, or null if this element does not define it
+    byte[] read(String path) throws IOException {
+      if (jar != null) {
+        ZipEntry entry = jar.getEntry(path);
+        if (entry == null) {
+          return null;
+        }
+        try (InputStream in = jar.getInputStream(entry)) {
+          return ByteStreams.toByteArray(in);
+        }
+      }
+      File classFile = new File(file, path);
+      return classFile.isFile() ? Files.toByteArray(classFile) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (jar != null) {
+        jar.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A content addressed store of generated client library archives, shared by every project that
+ * points at the same directory. An entry is keyed by the discovery doc, language, build system and
+ * endpoints tool version, so a hit is exactly what the generator would return again.
+ *
+ * <p>Each entry is a directory named by its key holding the archive. Entries are published with an
+ * atomic rename, and the modification time of the directory is refreshed on every hit, so the least
+ * recently used entries are evicted first when the cache grows over its size limit.
+ */
+class ClientLibCache {
+
+  private static final String TOOLS_GROUP_ID = "com.google.endpoints";
+  private static final String TOOLS_ARTIFACT_ID = "endpoints-framework-tools";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File cacheDir;
+  private final long maxBytes;
+  private final Log log;
+
+  ClientLibCache(File cacheDir, long maxBytes, Log log) {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    this.log = log;
+  }
+
+  /** The cache key of the client library generated from a discovery doc. */
+  static String computeKey(
+      String discoveryDoc, String language, String buildSystem, String toolVersion) {
+    return Hashing.sha256()
+        .newHasher()
+        .putString(discoveryDoc, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(language, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(buildSystem, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(toolVersion, StandardCharsets.UTF_8)
+        .hash()
+        .toString();
+  }
+
+  /**
+   * The cache key of the client library generated from a discovery doc file, hashed as a stream
+   * instead of read into memory. For a UTF-8 file this is the key computeKey(String, String,
+   * String, String) gives for its content.
+   */
+  static String computeKey(
+      File discoveryDoc, String language, String buildSystem, String toolVersion)
+      throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    Files.copy(discoveryDoc.toPath(), Funnels.asOutputStream(hasher));
+    return hasher
+        .putByte((byte) 0)
+        .putString(language, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(buildSystem, StandardCharsets.UTF_8)
+        .putByte((byte) 0)
+        .putString(toolVersion, StandardCharsets.UTF_8)
+        .hash()
+        .toString();
+  }
+
+  /** The version of the endpoints tool the plugin runs, or the plugin version if not found. */
+  static String getToolVersion(PluginDescriptor plugin) {
+    for (Artifact artifact : plugin.getArtifacts()) {
+      if (TOOLS_GROUP_ID.equals(artifact.getGroupId())
+          && TOOLS_ARTIFACT_ID.equals(artifact.getArtifactId())) {
+        return artifact.getVersion();
+      }
+    }
+    return plugin.getVersion();
+  }
+
+  /**
+   * Restore a cached archive and mark it as recently used. The archive is restored as a hard link
+   * where the file system allows it, else as a copy, so it stays intact if another build evicts the
+   * entry afterwards.
+   *
+   * @return true on a hit, false on a miss or if the entry was evicted while restoring it
+   */
+  boolean restore(String key, File destination) throws IOException {
+    File entryDir = new File(cacheDir, key);
+    File[] files = entryDir.listFiles();
+    if (files == null || files.length != 1 || !files[0].isFile()) {
+      return false;
+    }
+    entryDir.setLastModified(System.currentTimeMillis());
+    Files.deleteIfExists(destination.toPath());
+    try {
+      try {
+        Files.createLink(destination.toPath(), files[0].toPath());
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        Files.copy(files[0].toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Copy a freshly generated archive into the cache and evict old entries if the cache is over its
+   * size limit. Failures are logged and otherwise ignored, the cache is only an optimization.
+   */
+  void put(String key, File archive) {
+    File entryDir = new File(cacheDir, key);
+    File tempDir = new File(cacheDir, key + "-" + UUID.randomUUID() + TEMP_SUFFIX);
+    try {
+      Files.createDirectories(tempDir.toPath());
+      Files.copy(archive.toPath(), new File(tempDir, archive.getName()).toPath());
+      try {
+        Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+        // another build stored the same entry first
+      }
+      evict();
+    } catch (IOException e) {
+      log.warn("Failed to store client library in " + cacheDir.getAbsolutePath(), e);
+    } finally {
+      delete(tempDir);
+    }
+  }
+
+  // remove the least recently used entries until the cache fits in maxBytes
+  private void evict() {
+    File[] entryDirs = cacheDir.listFiles(file -> !file.getName().endsWith(TEMP_SUFFIX));
+    if (entryDirs == null) {
+      return;
+    }
+    // other builds touch entries while this one sorts, so sort by a snapshot of the times
+    Map<File, Long> lastUsed = new HashMap<>();
+    long totalBytes = 0;
+    for (File entryDir : entryDirs) {
+      lastUsed.put(entryDir, entryDir.lastModified());
+      totalBytes += sizeOf(entryDir);
+    }
+    List<File> entries = new ArrayList<>(lastUsed.keySet());
+    entries.sort(Comparator.comparing(lastUsed::get));
+    for (File entryDir : entries) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      totalBytes -= sizeOf(entryDir);
+      delete(entryDir);
+      log.debug("Evicted client library " + entryDir.getName() + " from cache");
+    }
+  }
+
+  private static long sizeOf(File entryDir) {
+    long size = 0;
+    File[] files = entryDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  private void delete(File dir) {
+    if (!dir.exists()) {
+      return;
+    }
+    try {
+      MoreFiles.deleteRecursively(dir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    } catch (NoSuchFileException e) {
+      // another build evicted it at the same time
+    } catch (IOException e) {
+      log.warn("Failed to delete " + dir.getAbsolutePath(), e);
+    }
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Compiles a generated client library in process, instead of building the Maven project in its
+ * archive with a nested build. The sources and resources of the project are compiled with the
+ * system Java compiler and packed into {@code <api>-client.jar}, next to {@code
+ * <api>-client-sources.jar}. Both jars are normalized like the archives, so they are reproducible.
+ */
+class ClientLibCompiler {
+
+  private static final String SOURCES = "src/main/java/";
+  private static final String RESOURCES = "src/main/resources/";
+  private static final String POM = "pom.xml";
+
+  private final Instant outputTimestamp;
+  private final GoalMetrics metrics;
+  private final Log log;
+
+  ClientLibCompiler(Instant outputTimestamp, GoalMetrics metrics, Log log) {
+    this.outputTimestamp = outputTimestamp;
+    this.metrics = metrics;
+    this.log = log;
+  }
+
+  /** The compiled jar and sources jar of a client library. */
+  static final class CompiledClientLib {
+    private final File jar;
+    private final File sourcesJar;
+
+    private CompiledClientLib(File jar, File sourcesJar) {
+      this.jar = jar;
+      this.sourcesJar = sourcesJar;
+    }
+
+    File getJar() {
+      return jar;
+    }
+
+    File getSourcesJar() {
+      return sourcesJar;
+    }
+  }
+
+  /**
+   * The compile and runtime dependencies the project in a client library archive declares, with the
+   * properties of its pom substituted.
+   */
+  static List<Dependency> readDependencies(File clientLib)
+      throws IOException, MojoExecutionException {
+    try (ZipFile zip = new ZipFile(clientLib)) {
+      ZipEntry pom = null;
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        // the project is the archive's only top level directory
+        if (entry.getName().endsWith("/" + POM)
+            && entry.getName().indexOf('/') == entry.getName().length() - POM.length() - 1) {
+          pom = entry;
+          break;
+        }
+      }
+      if (pom == null) {
+        throw new MojoExecutionException("No pom.xml in client library " + clientLib);
+      }
+      Element project;
+      try (InputStream in = zip.getInputStream(pom)) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setExpandEntityReferences(false);
+        project = factory.newDocumentBuilder().parse(in).getDocumentElement();
+      } catch (ParserConfigurationException | SAXException e) {
+        throw new MojoExecutionException("Invalid pom.xml in client library " + clientLib, e);
+      }
+      Map<String, String> properties = new HashMap<>();
+      putIfPresent(properties, "project.groupId", getChildText(project, "groupId"));
+      putIfPresent(properties, "project.version", getChildText(project, "version"));
+      Element propertiesElement = getChild(project, "properties");
+      if (propertiesElement != null) {
+        for (Element property : getChildren(propertiesElement, null)) {
+          properties.put(property.getTagName(), property.getTextContent().trim());
+        }
+      }
+
+      List<Dependency> dependencies = new ArrayList<>();
+      Element dependenciesElement = getChild(project, "dependencies");
+      if (dependenciesElement == null) {
+        return dependencies;
+      }
+      for (Element element : getChildren(dependenciesElement, "dependency")) {
+        String scope = getChildText(element, "scope");
+        if (scope == null || "compile".equals(scope) || "runtime".equals(scope)) {
+          Dependency dependency = new Dependency();
+          dependency.setGroupId(interpolate(getChildText(element, "groupId"), properties));
+          dependency.setArtifactId(interpolate(getChildText(element, "artifactId"), properties));
+          dependency.setVersion(interpolate(getChildText(element, "version"), properties));
+          dependency.setClassifier(interpolate(getChildText(element, "classifier"), properties));
+          dependencies.add(dependency);
+        }
+      }
+      return dependencies;
+    }
+  }
+
+  /**
+   * Compile the client library of an API.
+   *
+   * @param api the name and version of the API, {@code <name>-<version>}
+   * @param classpath the resolved dependencies of the client library
+   * @param workDir emptied and used for the extracted sources and the compiled classes
+   * @param outputDir where the jars are written
+   */
+  CompiledClientLib compile(
+      String api, File clientLib, List<File> classpath, File workDir, File outputDir)
+      throws IOException, MojoExecutionException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new MojoExecutionException(
+          "Compiling client libraries needs a JDK, the build runs on a JRE: "
+              + System.getProperty("java.home"));
+    }
+    if (workDir.exists()) {
+      MoreFiles.deleteRecursively(workDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+    File sourcesDir = new File(workDir, "sources");
+    File classesDir = new File(workDir, "classes");
+    List<File> sources;
+    try (GoalMetrics.Phase phase = metrics.start("clientLibExtraction");
+        EndpointsEvents.Span span =
+            EndpointsEvents.extraction(metrics.getModule(), api, clientLib)) {
+      sources = extract(clientLib, sourcesDir, classesDir);
+    }
+    if (!classesDir.mkdirs() && !classesDir.isDirectory()) {
+      throw new IOException("Failed to create " + classesDir);
+    }
+
+    log.info("Compiling " + sources.size() + " sources of the client library for " + api);
+    try (GoalMetrics.Phase phase = metrics.start("clientLibCompilation")) {
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+      try (StandardJavaFileManager fileManager =
+          compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8)) {
+        List<String> options = new ArrayList<>();
+        options.add("-d");
+        options.add(classesDir.getAbsolutePath());
+        options.add("-classpath");
+        options.add(join(classpath));
+        options.add("-encoding");
+        options.add("UTF-8");
+        options.add("-proc:none");
+        options.add("-nowarn");
+        // the generated clients support java 8, newer compilers check against its API
+        if (compiler.isSupportedOption("--release") >= 0) {
+          options.add("--release");
+          options.add("8");
+        } else {
+          options.add("-source");
+          options.add("1.8");
+          options.add("-target");
+          options.add("1.8");
+        }
+        boolean compiled =
+            compiler
+                .getTask(
+                    null,
+                    fileManager,
+                    diagnostics,
+                    options,
+                    null,
+                    fileManager.getJavaFileObjectsFromFiles(sources))
+                .call();
+        if (!compiled) {
+          StringBuilder errors = new StringBuilder();
+          for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+              errors.append('\n').append(diagnostic.getMessage(Locale.ROOT));
+            }
+          }
+          throw new MojoExecutionException(
+              "Failed to compile the client library for " + api + ":" + errors);
+        }
+      }
+    }
+
+    File jar = new File(outputDir, api + "-client.jar");
+    File sourcesJar = new File(outputDir, api + "-client-sources.jar");
+    try (GoalMetrics.Phase phase = metrics.start("clientLibPackaging")) {
+      writeJar(classesDir, api, jar);
+      writeJar(sourcesDir, api, sourcesJar);
+    }
+    log.info("Client library for " + api + " compiled to " + jar.getAbsolutePath());
+    return new CompiledClientLib(jar, sourcesJar);
+  }
+
+  // extract the sources and the resources of the project, returning the java sources
+  private static List<File> extract(File clientLib, File sourcesDir, File resourcesDir)
+      throws IOException {
+    List<File> sources = new ArrayList<>();
+    try (ZipInputStream zipIn =
+        new ZipInputStream(new BufferedInputStream(new FileInputStream(clientLib)))) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        // paths are relative to the project, the archive's top level directory
+        String name = entry.getName().substring(entry.getName().indexOf('/') + 1);
+        File destination;
+        if (name.startsWith(SOURCES)) {
+          destination = resolve(sourcesDir, name.substring(SOURCES.length()), entry);
+          if (name.endsWith(".java")) {
+            sources.add(destination);
+          }
+        } else if (name.startsWith(RESOURCES)) {
+          destination = resolve(resourcesDir, name.substring(RESOURCES.length()), entry);
+        } else {
+          continue;
+        }
+        Files.createParentDirs(destination);
+        try (OutputStream out = new FileOutputStream(destination)) {
+          ByteStreams.copy(zipIn, out);
+        }
+      }
+    }
+    Collections.sort(sources);
+    return sources;
+  }
+
+  // the file an entry is extracted to, names such as ../ must not leave the directory
+  private static File resolve(File dir, String name, ZipEntry entry) throws IOException {
+    File destination = resolveWithin(dir, name);
+    if (destination == null) {
+      throw new IOException("Client library entry " + entry.getName() + " is outside of " + dir);
+    }
+    return destination;
+  }
+
+  /**
+   * The file a relative name denotes in a directory, or {@code null} if the name leaves the
+   * directory, as names with {@code ../} or absolute names can.
+   */
+  static File resolveWithin(File dir, String name) {
+    Path root = dir.toPath().toAbsolutePath().normalize();
+    Path destination = root.resolve(name).normalize();
+    return destination.startsWith(root) ? destination.toFile() : null;
+  }
+
+  private void writeJar(File dir, String api, File jar) throws IOException {
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    try (EndpointsEvents.Span span = EndpointsEvents.fileWrite(metrics.getModule(), api, jar)) {
+      try (JarOutputStream out =
+          new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar)), manifest)) {
+        String root = dir.getAbsolutePath() + File.separator;
+        for (File file : Files.fileTraverser().depthFirstPreOrder(dir)) {
+          if (file.isFile()) {
+            String name = file.getAbsolutePath().substring(root.length());
+            out.putNextEntry(new ZipEntry(name.replace(File.separatorChar, '/')));
+            Files.copy(file, out);
+            out.closeEntry();
+          }
+        }
+      }
+      ZipNormalizer.normalize(jar, outputTimestamp);
+      span.setBytes(jar.length());
+    }
+  }
+
+  private static String join(List<File> classpath) {
+    StringBuilder joined = new StringBuilder();
+    for (File file : classpath) {
+      if (joined.length() > 0) {
+        joined.append(File.pathSeparatorChar);
+      }
+      joined.append(file.getAbsolutePath());
+    }
+    return joined.toString();
+  }
+
+  private static List<Element> getChildren(Element parent, String tagName) {
+    List<Element> children = new ArrayList<>();
+    NodeList nodes = parent.getChildNodes();
+    for (int i = 0; i < nodes.getLength(); i++) {
+      Node node = nodes.item(i);
+      if (node instanceof Element
+          && (tagName == null || tagName.equals(((Element) node).getTagName()))) {
+        children.add((Element) node);
+      }
+    }
+    return children;
+  }
+
+  private static Element getChild(Element parent, String tagName) {
+    List<Element> children = getChildren(parent, tagName);
+    return children.isEmpty() ? null : children.get(0);
+  }
+
+  private static String getChildText(Element parent, String tagName) {
+    Element child = getChild(parent, tagName);
+    return child == null ? null : child.getTextContent().trim();
+  }
+
+  private static void putIfPresent(Map<String, String> properties, String name, String value) {
+    if (value != null) {
+      properties.put(name, value);
+    }
+  }
+
+  // substitute ${name} with the pom's properties and its own coordinates
+  private static String interpolate(String value, Map<String, String> properties) {
+    if (value == null || !value.contains("${")) {
+      return value;
+    }
+    String interpolated = value;
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      interpolated = interpolated.replace("${" + property.getKey() + "}", property.getValue());
+    }
+    return interpolated;
+  }
+}
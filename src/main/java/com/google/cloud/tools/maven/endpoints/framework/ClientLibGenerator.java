@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.api.server.spi.tools.GenClientLibAction;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Generates the client library of an API from its discovery doc, restoring it from the client
+ * library cache when an identical doc was generated before. The archive is normalized, so the same
+ * discovery doc always gives the same bytes. Safe to use from several threads as long as they write
+ * different APIs or to different directories.
+ */
+class ClientLibGenerator {
+
+  private final ClientLibCache cache;
+  private final String toolVersion;
+  private final Instant outputTimestamp;
+  private final GoalMetrics metrics;
+  private final Log log;
+
+  // cache is null to always generate
+  ClientLibGenerator(
+      ClientLibCache cache,
+      String toolVersion,
+      Instant outputTimestamp,
+      GoalMetrics metrics,
+      Log log) {
+    this.cache = cache;
+    this.toolVersion = toolVersion;
+    this.outputTimestamp = outputTimestamp;
+    this.metrics = metrics;
+    this.log = log;
+  }
+
+  /** A language and the build system of the project generated for it. */
+  static final class Target {
+    static final Target DEFAULT = new Target("java", "maven");
+
+    private final String language;
+    private final String buildSystem;
+
+    private Target(String language, String buildSystem) {
+      this.language = language;
+      this.buildSystem = buildSystem;
+    }
+
+    /**
+     * Parse a target written as {@code <language>:<buildSystem>}.
+     *
+     * @throws IllegalArgumentException if the value is not a pair
+     */
+    static Target parse(String value) {
+      String[] parts = value.trim().split(":", -1);
+      if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+        throw new IllegalArgumentException(
+            "Invalid client library target " + value + ", expected <language>:<buildSystem>");
+      }
+      return new Target(parts[0], parts[1]);
+    }
+
+    /**
+     * Parse the configured targets, or give the default java:maven target when none are configured.
+     *
+     * @throws IllegalArgumentException if a value is not a pair
+     */
+    static Set<Target> parseAll(List<String> values) {
+      Set<Target> targets = new LinkedHashSet<>();
+      if (values == null || values.isEmpty()) {
+        targets.add(DEFAULT);
+      } else {
+        for (String value : values) {
+          targets.add(parse(value));
+        }
+      }
+      return targets;
+    }
+
+    /**
+     * The directory the target's client libraries are written to, its own subdirectory of
+     * clientLibDir. Without configured targets the default target keeps the flat layout of earlier
+     * versions and writes to clientLibDir itself.
+     */
+    File getOutputDir(File clientLibDir, List<String> configuredTargets) {
+      return configuredTargets == null || configuredTargets.isEmpty()
+          ? clientLibDir
+          : new File(clientLibDir, language + "-" + buildSystem);
+    }
+
+    String getLanguage() {
+      return language;
+    }
+
+    String getBuildSystem() {
+      return buildSystem;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Target)) {
+        return false;
+      }
+      Target other = (Target) o;
+      return language.equals(other.language) && buildSystem.equals(other.buildSystem);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(language, buildSystem);
+    }
+
+    @Override
+    public String toString() {
+      return language + ":" + buildSystem;
+    }
+  }
+
+  /**
+   * Write the java client library of an API for maven, see generate(String, String, Target, File).
+   */
+  File generate(String api, String discoveryDoc, File outputDir) throws IOException {
+    return generate(api, discoveryDoc, Target.DEFAULT, outputDir);
+  }
+
+  /**
+   * Write the client library of an API to {@code <outputDir>/<api>-<language>.zip}, with its
+   * discovery doc next to it as {@code <api>-rest.discovery}.
+   *
+   * @param api the name and version of the API, {@code <name>-<version>}
+   * @return the client library archive
+   */
+  File generate(String api, String discoveryDoc, Target target, File outputDir) throws IOException {
+    // the endpoints tool leaves the discovery docs next to the client libraries
+    File discoveryDocFile = new File(outputDir, api + "-rest.discovery");
+    Files.asCharSink(discoveryDocFile, StandardCharsets.UTF_8).write(discoveryDoc);
+
+    // the endpoints tool names the archive <name>-<version>-<language>.zip
+    File clientLib = new File(outputDir, api + "-" + target.language + ".zip");
+    String cacheKey =
+        ClientLibCache.computeKey(discoveryDoc, target.language, target.buildSystem, toolVersion);
+    try (GoalMetrics.Phase phase = metrics.start("clientLibGeneration");
+        EndpointsEvents.Span span =
+            EndpointsEvents.documentGeneration(metrics.getModule(), api, "clientLib " + target)) {
+      if (cache != null && cache.restore(cacheKey, clientLib)) {
+        log.info("Restored " + target + " client library for " + api + " from cache");
+      } else {
+        log.info("Generating " + target + " client library for " + api);
+        new GenClientLibAction()
+            .genClientLib(
+                target.language, outputDir.getAbsolutePath(), discoveryDoc, target.buildSystem);
+        // the cache keeps the archive as generated, each build applies its own timestamp
+        if (cache != null && clientLib.isFile()) {
+          cache.put(cacheKey, clientLib);
+        }
+      }
+    }
+    if (clientLib.isFile()) {
+      try (GoalMetrics.Phase phase = metrics.start("normalization");
+          EndpointsEvents.Span span =
+              EndpointsEvents.fileWrite(metrics.getModule(), api, clientLib)) {
+        ZipNormalizer.normalize(clientLib, outputTimestamp);
+        span.setBytes(clientLib.length());
+      }
+    }
+    return clientLib;
+  }
+}
@@ -17,33 +17,48 @@
 
 package com.google.cloud.tools.maven.endpoints.framework;
 
-import com.google.api.server.spi.tools.EndpointsTool;
-import com.google.api.server.spi.tools.GetClientLibAction;
-import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
-import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.util.artifact.JavaScopes;
+import org.eclipse.aether.util.filter.DependencyFilterUtils;
 
 /** Maven goal to generate client libraries (as zips). */
 @Mojo(
   name = "clientLibs",
   requiresDependencyResolution = ResolutionScope.COMPILE,
-  defaultPhase = LifecyclePhase.PREPARE_PACKAGE
+  defaultPhase = LifecyclePhase.PREPARE_PACKAGE,
+  threadSafe = true
 )
 public class ClientLibsMojo extends AbstractEndpointsWebAppMojo {
 
-  @Parameter(defaultValue = "${project}", readonly = true)
-  private MavenProject project;
-
   /** Output directory for client libraries. */
   @Parameter(
     defaultValue = "${project.build.directory}/client-libs",
@@ -60,47 +75,261 @@ public class ClientLibsMojo extends AbstractEndpointsWebAppMojo {
   @Parameter(property = "endpoints.basePath")
   private String basePath;
 
+  /** Reuse client libraries generated earlier from identical discovery docs. */
+  @Parameter(defaultValue = "true", property = "endpoints.clientLibCache")
+  private boolean clientLibCache;
+
+  /** Directory of the client library cache, shared between projects. */
+  @Parameter(
+    defaultValue = "${user.home}/.cache/endpoints-framework/client-libs",
+    property = "endpoints.clientLibCacheDir"
+  )
+  private File clientLibCacheDir;
+
+  /** Size limit of the client library cache in megabytes. */
+  @Parameter(defaultValue = "256", property = "endpoints.clientLibCacheSize")
+  private long clientLibCacheSize;
+
+  /**
+   * Timestamp of the entries of client library archives, ISO 8601 or seconds since the epoch. Every
+   * archive is rewritten with it and with sorted entries, so builds are reproducible.
+   */
+  @Parameter(
+    defaultValue = "${project.build.outputTimestamp}",
+    property = "endpoints.outputTimestamp"
+  )
+  private String outputTimestamp;
+
+  /**
+   * Languages and build systems to generate client libraries for, as {@code
+   * <language>:<buildSystem>} such as {@code java:gradle}. Each pair is written to its own
+   * subdirectory of clientLibDir, {@code <language>-<buildSystem>}. When unset, java libraries for
+   * maven are written to clientLibDir itself.
+   */
+  @Parameter(property = "endpoints.clientLibTargets")
+  private List<String> clientLibTargets;
+
+  /**
+   * Number of client libraries to generate concurrently, defaults to the number of available
+   * processors.
+   */
+  @Parameter(property = "endpoints.threads")
+  private Integer threads;
+
+  /**
+   * Also compile every client library in process, writing {@code <api>-client.jar} and {@code
+   * <api>-client-sources.jar} to the build directory, instead of leaving a project to build. The
+   * libraries of the first java:maven target are compiled, or of the first java target when
+   * clientLibDependencies is configured.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.compileClientLibs")
+  private boolean compileClientLibs;
+
+  /**
+   * Dependencies to compile client libraries against, as {@code groupId:artifactId:version},
+   * instead of those the generated project declares. Their own dependencies are resolved too.
+   */
+  @Parameter(property = "endpoints.clientLibDependencies")
+  private List<String> clientLibDependencies;
+
+  /**
+   * Attach compiled client libraries to the project with the classifier {@code
+   * <clientLibClassifier>-<api>}, and their sources with {@code
+   * <clientLibClassifier>-<api>-sources}. They are not attached when unset.
+   */
+  @Parameter(property = "endpoints.clientLibClassifier")
+  private String clientLibClassifier;
+
+  @Component private RepositorySystem repositorySystem;
+
+  @Component private MavenProjectHelper projectHelper;
+
+  @Parameter(defaultValue = "${repositorySystemSession}", readonly = true)
+  private RepositorySystemSession repositorySession;
+
+  @Parameter(defaultValue = "${project.remoteProjectRepositories}", readonly = true)
+  private List<RemoteRepository> remoteRepositories;
+
   @Override
   public void execute() throws MojoExecutionException, MojoFailureException {
-    if (!clientLibDir.exists() && !clientLibDir.mkdirs()) {
+    metrics = new GoalMetrics("clientLibs", project.getArtifactId());
+    Set<ClientLibGenerator.Target> targets;
+    try {
+      targets = ClientLibGenerator.Target.parseAll(clientLibTargets);
+    } catch (IllegalArgumentException e) {
+      throw new MojoExecutionException(e.getMessage(), e);
+    }
+    ClientLibGenerator.Target compiledTarget =
+        compileClientLibs ? getCompiledTarget(targets) : null;
+    if (!clientLibDir.mkdirs() && !clientLibDir.isDirectory()) {
       throw new MojoExecutionException(
           "Failed to create output directory: " + clientLibDir.getAbsolutePath());
     }
+
+    ExecutorService executor = null;
     try {
-      String classpath = Joiner.on(File.pathSeparator).join(project.getRuntimeClasspathElements());
-      classpath += File.pathSeparator + classesDir;
-
-      List<String> params =
-          new ArrayList<>(
-              Arrays.asList(
-                  GetClientLibAction.NAME,
-                  "-o",
-                  clientLibDir.getAbsolutePath(),
-                  "-cp",
-                  classpath,
-                  "-l",
-                  "java",
-                  "-bs",
-                  "maven",
-                  "-w",
-                  webappDir.getAbsolutePath()));
-      if (!Strings.isNullOrEmpty(hostname)) {
-        params.add("-h");
-        params.add(hostname);
+      ApiModel apiModel = getApiModel(hostname, basePath);
+      ClientLibCache cache =
+          clientLibCache
+              ? new ClientLibCache(clientLibCacheDir, clientLibCacheSize * 1024 * 1024, getLog())
+              : null;
+      String toolVersion = ClientLibCache.getToolVersion(plugin);
+      Map<String, String> discoveryDocs;
+      try (GoalMetrics.Phase phase = metrics.start("serialization")) {
+        discoveryDocs = apiModel.getDiscoveryDocs();
       }
-      if (!Strings.isNullOrEmpty(basePath)) {
-        params.add("-p");
-        params.add(basePath);
+      ClientLibGenerator generator =
+          new ClientLibGenerator(
+              cache, toolVersion, ZipNormalizer.parseTimestamp(outputTimestamp), metrics, getLog());
+
+      int poolSize =
+          threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+      executor =
+          Executors.newFixedThreadPool(
+              Math.max(1, Math.min(poolSize, targets.size() * discoveryDocs.size())),
+              new ThreadFactoryBuilder()
+                  .setNameFormat("endpoints-clientLibs-%d")
+                  .setDaemon(true)
+                  .build());
+      CompletionService<File> generations = new ExecutorCompletionService<>(executor);
+      Map<String, Future<File>> compiledClientLibs = new LinkedHashMap<>();
+      int pendingGenerations = 0;
+      for (ClientLibGenerator.Target target : targets) {
+        File outputDir = target.getOutputDir(clientLibDir, clientLibTargets);
+        if (!outputDir.mkdirs() && !outputDir.isDirectory()) {
+          throw new MojoExecutionException(
+              "Failed to create output directory: " + outputDir.getAbsolutePath());
+        }
+        for (Map.Entry<String, String> discoveryDoc : discoveryDocs.entrySet()) {
+          Future<File> generation =
+              generations.submit(
+                  () ->
+                      generator.generate(
+                          discoveryDoc.getKey(), discoveryDoc.getValue(), target, outputDir));
+          pendingGenerations++;
+          if (target.equals(compiledTarget)) {
+            compiledClientLibs.put(discoveryDoc.getKey(), generation);
+          }
+        }
       }
-      if (serviceClasses != null) {
-        params.addAll(serviceClasses);
+      // fail on the first error instead of waiting for the other client libraries
+      for (int i = 0; i < pendingGenerations; i++) {
+        await(generations.take());
       }
 
-      getLog().info("Endpoints Tool params : " + params.toString());
-      new EndpointsTool().execute(params.toArray(new String[params.size()]));
+      ClientLibCompiler compiler =
+          new ClientLibCompiler(ZipNormalizer.parseTimestamp(outputTimestamp), metrics, getLog());
+      for (Map.Entry<String, Future<File>> clientLib : compiledClientLibs.entrySet()) {
+        compileClientLib(compiler, clientLib.getKey(), await(clientLib.getValue()));
+      }
 
+    } catch (MojoExecutionException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted while generating client libraries", e);
     } catch (Exception e) {
       throw new MojoExecutionException("Endpoints Tool Error", e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      reportMetrics();
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws InterruptedException, MojoExecutionException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new MojoExecutionException("Endpoints Tool Error", e.getCause());
+    }
+  }
+
+  private void compileClientLib(ClientLibCompiler compiler, String api, File clientLib)
+      throws Exception {
+    if (!clientLib.isFile()) {
+      throw new MojoExecutionException("No client library was generated for " + api);
+    }
+    List<File> classpath;
+    try (GoalMetrics.Phase phase = metrics.start("clientLibDependencies")) {
+      classpath = resolveClientLibDependencies(clientLib);
+    }
+    File workDir =
+        new File(project.getBuild().getDirectory(), "endpoints-framework/clientLibs/" + api);
+    ClientLibCompiler.CompiledClientLib compiled =
+        compiler.compile(
+            api, clientLib, classpath, workDir, new File(project.getBuild().getDirectory()));
+    if (!Strings.isNullOrEmpty(clientLibClassifier)) {
+      String classifier = clientLibClassifier + "-" + api;
+      projectHelper.attachArtifact(project, "jar", classifier, compiled.getJar());
+      projectHelper.attachArtifact(
+          project, "jar", classifier + "-sources", compiled.getSourcesJar());
+    }
+  }
+
+  // the first java:maven target, whose pom.xml declares the dependencies to compile against, or
+  // with clientLibDependencies configured the first java target
+  private ClientLibGenerator.Target getCompiledTarget(Set<ClientLibGenerator.Target> targets)
+      throws MojoExecutionException {
+    boolean dependenciesConfigured =
+        clientLibDependencies != null && !clientLibDependencies.isEmpty();
+    ClientLibGenerator.Target javaTarget = null;
+    for (ClientLibGenerator.Target target : targets) {
+      if ("java".equals(target.getLanguage())) {
+        if ("maven".equals(target.getBuildSystem())) {
+          return target;
+        }
+        if (javaTarget == null) {
+          javaTarget = target;
+        }
+      }
+    }
+    if (javaTarget == null) {
+      throw new MojoExecutionException(
+          "compileClientLibs needs a java client library target, configured are " + targets);
+    }
+    if (!dependenciesConfigured) {
+      throw new MojoExecutionException(
+          "compileClientLibs reads the dependencies of client libraries from the pom.xml of a"
+              + " java:maven target, add java:maven to clientLibTargets or configure"
+              + " clientLibDependencies, configured are "
+              + targets);
+    }
+    return javaTarget;
+  }
+
+  // the configured dependencies, or those of the generated project, with their own dependencies
+  private List<File> resolveClientLibDependencies(File clientLib) throws Exception {
+    CollectRequest collectRequest = new CollectRequest();
+    collectRequest.setRepositories(remoteRepositories);
+    if (clientLibDependencies != null && !clientLibDependencies.isEmpty()) {
+      for (String coordinates : clientLibDependencies) {
+        collectRequest.addDependency(
+            new org.eclipse.aether.graph.Dependency(
+                new DefaultArtifact(coordinates), JavaScopes.COMPILE));
+      }
+    } else {
+      for (Dependency dependency : ClientLibCompiler.readDependencies(clientLib)) {
+        collectRequest.addDependency(
+            new org.eclipse.aether.graph.Dependency(
+                new DefaultArtifact(
+                    dependency.getGroupId(),
+                    dependency.getArtifactId(),
+                    dependency.getClassifier(),
+                    "jar",
+                    dependency.getVersion()),
+                JavaScopes.COMPILE));
+      }
+    }
+    DependencyRequest request =
+        new DependencyRequest(
+            collectRequest, DependencyFilterUtils.classpathFilter(JavaScopes.COMPILE));
+    List<File> classpath = new ArrayList<>();
+    for (ArtifactResult result :
+        repositorySystem.resolveDependencies(repositorySession, request).getArtifactResults()) {
+      classpath.add(result.getArtifact().getFile());
     }
+    return classpath;
   }
 }
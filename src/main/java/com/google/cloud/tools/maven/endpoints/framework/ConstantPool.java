@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The constant pool of a class file, reduced to the strings and class references that the plugin's
+ * class file scans need. Reading it leaves the buffer at the access flags of the class.
+ */
+final class ConstantPool {
+
+  private final String[] utf8;
+  private final int[] classNameIndex;
+
+  private ConstantPool(String[] utf8, int[] classNameIndex) {
+    this.utf8 = utf8;
+    this.classNameIndex = classNameIndex;
+  }
+
+  /**
+   * Read the header and constant pool of a class file.
+   *
+   * @throws IllegalArgumentException if the buffer does not hold a class file
+   * @throws BufferUnderflowException if the class file is truncated
+   */
+  static ConstantPool read(ByteBuffer buffer) {
+    if (buffer.getInt() != 0xCAFEBABE) {
+      throw new IllegalArgumentException("Not a class file");
+    }
+    buffer.getInt(); // minor and major version
+
+    int constantPoolCount = buffer.getShort() & 0xFFFF;
+    String[] utf8 = new String[constantPoolCount];
+    int[] classNameIndex = new int[constantPoolCount];
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = buffer.get();
+      switch (tag) {
+        case 1: // Utf8
+          int length = buffer.getShort() & 0xFFFF;
+          utf8[i] = readUtf8(buffer, length);
+          break;
+        case 7: // Class
+          classNameIndex[i] = buffer.getShort() & 0xFFFF;
+          break;
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          skip(buffer, 2);
+          break;
+        case 15: // MethodHandle
+          skip(buffer, 3);
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          skip(buffer, 4);
+          break;
+        case 5: // Long
+        case 6: // Double
+          skip(buffer, 8);
+          i++; // takes two entries
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+      }
+    }
+    return new ConstantPool(utf8, classNameIndex);
+  }
+
+  /** The string at a Utf8 entry. */
+  String getUtf8(int index) {
+    return utf8[index];
+  }
+
+  /** The internal name of the class at a Class entry. */
+  String getClassName(int index) {
+    return utf8[classNameIndex[index]];
+  }
+
+  /** Whether any Utf8 entry equals the value, such as the descriptor of an annotation. */
+  boolean containsUtf8(String value) {
+    for (String entry : utf8) {
+      if (value.equals(entry)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The first Utf8 entry with the given prefix and suffix, such as a URL, or null if none has. */
+  String findUtf8(String prefix, String suffix) {
+    for (String entry : utf8) {
+      if (entry != null && entry.startsWith(prefix) && entry.endsWith(suffix)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The internal names of the classes the class file refers to, from its Class entries and from
+   * every type descriptor and generic signature in its strings. Strings that merely look like
+   * descriptors are included too, callers filter the names by the classes that exist.
+   */
+  Set<String> getReferencedClassNames() {
+    Set<String> names = new HashSet<>();
+    for (int i = 1; i < utf8.length; i++) {
+      if (classNameIndex[i] != 0) {
+        String name = utf8[classNameIndex[i]];
+        if (name.startsWith("[")) {
+          addDescriptorClassNames(name, names);
+        } else {
+          names.add(name);
+        }
+      }
+      if (utf8[i] != null) {
+        addDescriptorClassNames(utf8[i], names);
+      }
+    }
+    return names;
+  }
+
+  // the names of the L<name>; types in a descriptor or signature
+  private static void addDescriptorClassNames(String descriptor, Set<String> names) {
+    for (int i = 0; i < descriptor.length(); i++) {
+      if (descriptor.charAt(i) != 'L' || (i > 0 && !isTypeStart(descriptor.charAt(i - 1)))) {
+        continue;
+      }
+      int end = i + 1;
+      while (end < descriptor.length()
+          && descriptor.charAt(end) != ';'
+          && descriptor.charAt(end) != '<') {
+        end++;
+      }
+      if (end < descriptor.length() && end > i + 1) {
+        names.add(descriptor.substring(i + 1, end));
+      }
+      i = end;
+    }
+  }
+
+  // characters a type can follow in a descriptor or signature
+  private static boolean isTypeStart(char previous) {
+    return "()[;<>:+-*^".indexOf(previous) >= 0;
+  }
+
+  // class names are plain ascii in practice, only decode modified utf8 when needed
+  private static String readUtf8(ByteBuffer buffer, int length) {
+    int start = buffer.position();
+    skip(buffer, length);
+    for (int i = start; i < start + length; i++) {
+      if (buffer.get(i) < 0) {
+        return new String(buffer.array(), start, length, StandardCharsets.UTF_8);
+      }
+    }
+    return new String(buffer.array(), start, length, StandardCharsets.ISO_8859_1);
+  }
+
+  static void skip(ByteBuffer buffer, int length) {
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    buffer.position(buffer.position() + length);
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Removes resources and methods from a discovery doc before its client library is generated,
+ * together with the schemas no remaining method reaches through {@code $ref}, directly or through
+ * other schemas. Resources left without methods are removed too.
+ *
+ * <p>Patterns are matched against the dotted path of a method below the API, such as {@code
+ * users.photos.list}, where {@code *} matches within one name and {@code **} across names. A
+ * pattern matching a resource, such as {@code users}, applies to all of its methods. A method is
+ * kept if it matches an include, or there are no includes, and matches no exclude.
+ *
+ * <p>The doc is read twice as a stream, first for the references and then to copy what is kept, so
+ * only names are held in memory.
+ */
+final class DiscoveryDocFilter {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final List<Pattern> includes;
+  private final List<Pattern> excludes;
+
+  DiscoveryDocFilter(List<String> includes, List<String> excludes) {
+    this.includes = compile(includes);
+    this.excludes = compile(excludes);
+  }
+
+  /** Whether the filter keeps every method, so a doc can be used as it is. */
+  boolean isEmpty() {
+    return includes.isEmpty() && excludes.isEmpty();
+  }
+
+  /**
+   * Write the filtered discovery doc.
+   *
+   * @return what was kept of the doc
+   */
+  Result filter(File discoveryDoc, File filteredDoc) throws IOException {
+    References references = new References();
+    try (JsonParser parser = JSON_FACTORY.createParser(discoveryDoc)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Discovery doc " + discoveryDoc + " is not a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT && "schemas".equals(field)) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String schema = parser.getCurrentName();
+            parser.nextToken();
+            references.schemas.put(schema, collectRefs(parser));
+          }
+        } else if (value == JsonToken.START_OBJECT && "methods".equals(field)) {
+          readMethods(parser, "", references);
+        } else if (value == JsonToken.START_OBJECT && "resources".equals(field)) {
+          readResources(parser, "", references);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    Set<String> keptSchemas = references.getReachableSchemas();
+
+    try (JsonParser parser = JSON_FACTORY.createParser(discoveryDoc);
+        JsonGenerator generator = JSON_FACTORY.createGenerator(filteredDoc, JsonEncoding.UTF8)) {
+      parser.nextToken();
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT && "schemas".equals(field)) {
+          generator.writeFieldName(field);
+          copyEntries(parser, generator, "", keptSchemas);
+        } else if (value == JsonToken.START_OBJECT && "methods".equals(field)) {
+          copyMethods(parser, generator, "", references);
+        } else if (value == JsonToken.START_OBJECT && "resources".equals(field)) {
+          copyResources(parser, generator, "", references);
+        } else {
+          generator.writeFieldName(field);
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      generator.writeEndObject();
+    }
+    return new Result(
+        references.keptMethodCount,
+        references.methodCount,
+        keptSchemas.size(),
+        references.schemas.size());
+  }
+
+  private void readMethods(JsonParser parser, String prefix, References references)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String path = prefix + parser.getCurrentName();
+      parser.nextToken();
+      references.methodCount++;
+      if (isKept(path)) {
+        references.keptMethodCount++;
+        references.keptMethods.computeIfAbsent(prefix, key -> new HashSet<>()).add(path);
+        references.methodRefs.addAll(collectRefs(parser));
+        // the method's resource and every enclosing one stay
+        for (int dot = path.lastIndexOf('.'); dot > 0; dot = path.lastIndexOf('.', dot - 1)) {
+          references.keptResources.add(path.substring(0, dot));
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void readResources(JsonParser parser, String prefix, References references)
+      throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String path = prefix + parser.getCurrentName();
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        continue;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT && "methods".equals(field)) {
+          readMethods(parser, path + ".", references);
+        } else if (value == JsonToken.START_OBJECT && "resources".equals(field)) {
+          readResources(parser, path + ".", references);
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+  }
+
+  // write the kept methods of one methods object, or nothing if none is kept
+  private static void copyMethods(
+      JsonParser parser, JsonGenerator generator, String prefix, References references)
+      throws IOException {
+    Set<String> kept = references.keptMethods.get(prefix);
+    if (kept == null) {
+      parser.skipChildren();
+      return;
+    }
+    generator.writeFieldName("methods");
+    copyEntries(parser, generator, prefix, kept);
+  }
+
+  private static void copyResources(
+      JsonParser parser, JsonGenerator generator, String prefix, References references)
+      throws IOException {
+    boolean started = false;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      String path = prefix + name;
+      if (parser.nextToken() != JsonToken.START_OBJECT
+          || !references.keptResources.contains(path)) {
+        parser.skipChildren();
+        continue;
+      }
+      if (!started) {
+        generator.writeFieldName("resources");
+        generator.writeStartObject();
+        started = true;
+      }
+      generator.writeFieldName(name);
+      generator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.START_OBJECT && "methods".equals(field)) {
+          copyMethods(parser, generator, path + ".", references);
+        } else if (value == JsonToken.START_OBJECT && "resources".equals(field)) {
+          copyResources(parser, generator, path + ".", references);
+        } else {
+          generator.writeFieldName(field);
+          generator.copyCurrentStructure(parser);
+        }
+      }
+      generator.writeEndObject();
+    }
+    if (started) {
+      generator.writeEndObject();
+    }
+  }
+
+  // copy the entries of the object the parser is at whose prefixed names are kept
+  private static void copyEntries(
+      JsonParser parser, JsonGenerator generator, String prefix, Set<String> kept)
+      throws IOException {
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (kept.contains(prefix + name)) {
+        generator.writeFieldName(name);
+        generator.copyCurrentStructure(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    generator.writeEndObject();
+  }
+
+  // the $ref values in the value the parser is at, which is consumed
+  private static Set<String> collectRefs(JsonParser parser) throws IOException {
+    Set<String> refs = new HashSet<>();
+    if (!parser.currentToken().isStructStart()) {
+      return refs;
+    }
+    int depth = 1;
+    while (depth > 0) {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        break;
+      } else if (token.isStructStart()) {
+        depth++;
+      } else if (token.isStructEnd()) {
+        depth--;
+      } else if (token == JsonToken.FIELD_NAME && "$ref".equals(parser.getCurrentName())) {
+        if (parser.nextToken() == JsonToken.VALUE_STRING) {
+          refs.add(parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return refs;
+  }
+
+  private boolean isKept(String methodPath) {
+    return (includes.isEmpty() || matches(includes, methodPath)) && !matches(excludes, methodPath);
+  }
+
+  // whether a pattern matches the method or one of its resources
+  private static boolean matches(List<Pattern> patterns, String methodPath) {
+    for (Pattern pattern : patterns) {
+      String path = methodPath;
+      while (true) {
+        if (pattern.matcher(path).matches()) {
+          return true;
+        }
+        int dot = path.lastIndexOf('.');
+        if (dot < 0) {
+          break;
+        }
+        path = path.substring(0, dot);
+      }
+    }
+    return false;
+  }
+
+  private static List<Pattern> compile(List<String> patterns) {
+    if (patterns == null) {
+      return Collections.emptyList();
+    }
+    List<Pattern> compiled = new ArrayList<>();
+    for (String pattern : patterns) {
+      StringBuilder regex = new StringBuilder();
+      String trimmed = pattern.trim();
+      for (int i = 0; i < trimmed.length(); i++) {
+        char c = trimmed.charAt(i);
+        if (c == '*' && i + 1 < trimmed.length() && trimmed.charAt(i + 1) == '*') {
+          regex.append(".*");
+          i++;
+        } else if (c == '*') {
+          regex.append("[^.]*");
+        } else {
+          regex.append(Pattern.quote(String.valueOf(c)));
+        }
+      }
+      compiled.add(Pattern.compile(regex.toString()));
+    }
+    return compiled;
+  }
+
+  /** The methods kept and the references of the doc, found by the first pass. */
+  private static final class References {
+    private final Map<String, Set<String>> schemas = new HashMap<>();
+    // the kept methods by the path prefix of their methods object
+    private final Map<String, Set<String>> keptMethods = new HashMap<>();
+    private final Set<String> keptResources = new HashSet<>();
+    private final Set<String> methodRefs = new HashSet<>();
+    private int methodCount;
+    private int keptMethodCount;
+
+    private Set<String> getReachableSchemas() {
+      Set<String> reachable = new HashSet<>();
+      Deque<String> pending = new ArrayDeque<>(methodRefs);
+      while (!pending.isEmpty()) {
+        String schema = pending.remove();
+        if (schemas.containsKey(schema) && reachable.add(schema)) {
+          pending.addAll(schemas.get(schema));
+        }
+      }
+      return reachable;
+    }
+  }
+
+  /** The number of methods and schemas kept of a doc. */
+  static final class Result {
+    private final int keptMethods;
+    private final int methods;
+    private final int keptSchemas;
+    private final int schemas;
+
+    private Result(int keptMethods, int methods, int keptSchemas, int schemas) {
+      this.keptMethods = keptMethods;
+      this.methods = methods;
+      this.keptSchemas = keptSchemas;
+      this.schemas = schemas;
+    }
+
+    int getKeptMethods() {
+      return keptMethods;
+    }
+
+    @Override
+    public String toString() {
+      return "kept "
+          + keptMethods
+          + " of "
+          + methods
+          + " methods and "
+          + keptSchemas
+          + " of "
+          + schemas
+          + " schemas";
+    }
+  }
+}
@@ -17,31 +17,33 @@
 
 package com.google.cloud.tools.maven.endpoints.framework;
 
-import com.google.api.server.spi.tools.EndpointsTool;
-import com.google.api.server.spi.tools.GetDiscoveryDocAction;
-import com.google.common.base.Joiner;
-import com.google.common.base.Strings;
+import com.google.common.io.Files;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
-import org.apache.maven.project.MavenProject;
 
 /** Goal which generates discovery docs. */
 @Mojo(
   name = "discoveryDocs",
   requiresDependencyResolution = ResolutionScope.COMPILE,
-  defaultPhase = LifecyclePhase.PREPARE_PACKAGE
+  defaultPhase = LifecyclePhase.PREPARE_PACKAGE,
+  threadSafe = true
 )
 public class DiscoveryDocsMojo extends AbstractEndpointsWebAppMojo {
 
-  @Parameter(defaultValue = "${project}", readonly = true)
-  private MavenProject project;
+  private static final String API_DEPENDENCIES_PATH = "endpoints-framework/discoveryDocs.apis";
 
   /** Output directory for discovery docs. */
   @Parameter(
@@ -59,43 +61,170 @@ public class DiscoveryDocsMojo extends AbstractEndpointsWebAppMojo {
   @Parameter(property = "endpoints.basepath", required = false)
   private String basePath;
 
+  /** Skip generation when the inputs and outputs are unchanged since the last build. */
+  @Parameter(defaultValue = "true", property = "endpoints.incremental")
+  private boolean incremental;
+
+  /**
+   * Generate the discovery docs a second time from an independent introspection of the service
+   * classes and fail the build if the bytes differ, to check that builds are reproducible.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.verifyReproducible")
+  private boolean verifyReproducible;
+
   @Override
-  public void execute() throws MojoExecutionException {
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    metrics = new GoalMetrics("discoveryDocs", project.getArtifactId());
     try {
-      if (!discoveryDocDir.exists() && !discoveryDocDir.mkdirs()) {
+      if (!discoveryDocDir.mkdirs() && !discoveryDocDir.isDirectory()) {
         throw new MojoExecutionException(
             "Failed to create output directory: " + discoveryDocDir.getAbsolutePath());
       }
-      String classpath = Joiner.on(File.pathSeparator).join(project.getRuntimeClasspathElements());
-      classpath += File.pathSeparator + classesDir;
-
-      List<String> params =
-          new ArrayList<>(
-              Arrays.asList(
-                  GetDiscoveryDocAction.NAME,
-                  "-o",
-                  discoveryDocDir.getAbsolutePath(),
-                  "-cp",
-                  classpath,
-                  "-w",
-                  webappDir.getAbsolutePath()));
-      if (!Strings.isNullOrEmpty(hostname)) {
-        params.add("-h");
-        params.add(hostname);
+      UpToDateState upToDateState = null;
+      ApiDependencies apiDependencies = null;
+      // verification needs the outputs generated, skipping them would leave nothing to compare
+      if (incremental && !verifyReproducible) {
+        try (GoalMetrics.Phase phase = metrics.start("upToDateCheck")) {
+          upToDateState =
+              loadUpToDateState("discoveryDocs")
+                  .putParameter("discoveryDocDir", discoveryDocDir.getAbsolutePath())
+                  .putParameter("hostname", hostname)
+                  .putParameter("basePath", basePath);
+          if (upToDateState.isUpToDate()) {
+            getLog().info("Discovery docs are up to date");
+            return;
+          }
+          if (upToDateState.areOutputsIntact()) {
+            // reload only the APIs whose classes changed
+            apiDependencies =
+                ApiDependencies.load(
+                    new File(project.getBuild().getDirectory(), API_DEPENDENCIES_PATH),
+                    classesDir,
+                    upToDateState.getSharedFingerprint());
+          } else {
+            // a document changed since it was written or none exists, regenerate them all
+          }
+        }
       }
-      if (!Strings.isNullOrEmpty(basePath)) {
-        params.add("-p");
-        params.add(basePath);
+
+      ApiModel.Key key = getApiModelKey(hostname, basePath);
+      Set<String> changedApis = new TreeSet<>();
+      Set<String> unchangedApis = new TreeSet<>();
+      // all service classes unless some APIs are up to date
+      List<String> toLoad = null;
+      boolean partial = false;
+      if (apiDependencies != null) {
+        List<String> serviceClassNames = key.getServiceClassNames(getLog());
+        try (GoalMetrics.Phase phase = metrics.start("dependencyCheck")) {
+          changedApis.addAll(apiDependencies.getChangedApis(serviceClassNames));
+        }
+        unchangedApis.addAll(apiDependencies.getApis());
+        unchangedApis.removeAll(changedApis);
+        toLoad = apiDependencies.getServiceClassesToLoad(serviceClassNames, changedApis);
+        if (toLoad.size() < serviceClassNames.size()) {
+          getLog()
+              .info(
+                  unchangedApis.size()
+                      + " of "
+                      + apiDependencies.getApis().size()
+                      + " APIs are up to date, loading "
+                      + toLoad.size()
+                      + " of "
+                      + serviceClassNames.size()
+                      + " service classes");
+          key = key.withServiceClasses(toLoad);
+          partial = true;
+        }
       }
-      if (serviceClasses != null) {
-        params.addAll(serviceClasses);
+
+      Map<String, String> discoveryDocs = Collections.emptyMap();
+      Map<String, List<String>> serviceClassesByApi = Collections.emptyMap();
+      if (toLoad == null || !toLoad.isEmpty()) {
+        // a partial model is closed here, the model of all service classes is kept for other goals
+        try (ApiModel partialModel = partial ? loadPartialApiModel(key) : null) {
+          ApiModel apiModel = partial ? partialModel : getApiModel(key);
+          serviceClassesByApi = apiModel.getServiceClassesByApi();
+          if (!Collections.disjoint(serviceClassesByApi.keySet(), unchangedApis)) {
+            // a changed class moved into an API considered unchanged, so regenerate everything
+            getLog().info("Classes moved between APIs, regenerating all discovery docs");
+            unchangedApis.clear();
+            apiModel = getApiModel(hostname, basePath);
+            serviceClassesByApi = apiModel.getServiceClassesByApi();
+          }
+          try (GoalMetrics.Phase phase = metrics.start("serialization")) {
+            discoveryDocs = apiModel.getDiscoveryDocs();
+          }
+        }
+      }
+
+      try (GoalMetrics.Phase phase = metrics.start("write")) {
+        for (Map.Entry<String, String> discoveryDoc : discoveryDocs.entrySet()) {
+          File discoveryDocFile = getDiscoveryDocFile(discoveryDoc.getKey());
+          try (EndpointsEvents.Span span =
+              EndpointsEvents.fileWrite(
+                  metrics.getModule(), discoveryDoc.getKey(), discoveryDocFile)) {
+            Files.asCharSink(discoveryDocFile, StandardCharsets.UTF_8)
+                .write(discoveryDoc.getValue());
+            span.setBytes(discoveryDocFile.length());
+          }
+          getLog().info("API Discovery Document written to " + discoveryDocFile.getAbsolutePath());
+        }
+
+        if (upToDateState != null) {
+          List<File> discoveryDocFiles = new ArrayList<>();
+          if (apiDependencies == null) {
+            apiDependencies =
+                ApiDependencies.load(
+                    new File(project.getBuild().getDirectory(), API_DEPENDENCIES_PATH),
+                    classesDir,
+                    upToDateState.getSharedFingerprint());
+          }
+          // APIs that were regenerated but no longer exist
+          for (String api : apiDependencies.getApis()) {
+            if (!unchangedApis.contains(api) && !discoveryDocs.containsKey(api)) {
+              apiDependencies.remove(api);
+              if (getDiscoveryDocFile(api).delete()) {
+                getLog().info("Removed " + getDiscoveryDocFile(api).getAbsolutePath());
+              }
+            }
+          }
+          for (Map.Entry<String, List<String>> api : serviceClassesByApi.entrySet()) {
+            apiDependencies.record(api.getKey(), api.getValue());
+          }
+          for (String api : apiDependencies.getApis()) {
+            discoveryDocFiles.add(getDiscoveryDocFile(api));
+          }
+          apiDependencies.save();
+          upToDateState.save(discoveryDocFiles);
+        }
       }
 
-      getLog().info("Endpoints Tool params : " + params.toString());
-      new EndpointsTool().execute(params.toArray(new String[params.size()]));
+      if (verifyReproducible) {
+        verifyDiscoveryDocs(key);
+      }
 
+    } catch (MojoExecutionException | MojoFailureException e) {
+      throw e;
     } catch (Exception e) {
       throw new MojoExecutionException("Endpoints Tool Error", e);
+    } finally {
+      reportMetrics();
     }
   }
+
+  private void verifyDiscoveryDocs(ApiModel.Key key) throws Exception {
+    Map<File, byte[]> regenerated = new LinkedHashMap<>();
+    try (ApiModel apiModel = loadIndependentApiModel(key)) {
+      for (Map.Entry<String, String> discoveryDoc : apiModel.getDiscoveryDocs().entrySet()) {
+        regenerated.put(
+            getDiscoveryDocFile(discoveryDoc.getKey()),
+            discoveryDoc.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    verifyReproducible(regenerated);
+  }
+
+  private File getDiscoveryDocFile(String api) {
+    return new File(discoveryDocDir, api + "-rest.discovery");
+  }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.io.File;
+
+/**
+ * Java Flight Recorder events of the work the goals do, carrying the module and API they belong to,
+ * so a recording of a reactor build shows where the endpoints time goes. Events are begun when the
+ * work starts and committed when the returned span is closed.
+ *
+ * <p>When the JVM has no flight recorder, or no recording enables an event, the shared no-op span
+ * is returned and nothing is allocated. The flight recorder classes are only loaded when the JVM
+ * provides them.
+ */
+final class EndpointsEvents {
+
+  /** A running event, committed when closed. */
+  interface Span extends AutoCloseable {
+    /** Record the number of bytes the work wrote. */
+    void setBytes(long bytes);
+
+    @Override
+    void close();
+  }
+
+  static final Span NOOP =
+      new Span() {
+        @Override
+        public void setBytes(long bytes) {}
+
+        @Override
+        public void close() {}
+      };
+
+  private static final boolean AVAILABLE = isAvailable();
+
+  private EndpointsEvents() {}
+
+  /** Resolving the classpath and service classes the API model of a module is loaded from. */
+  static Span classpath(String module) {
+    return AVAILABLE ? JfrEvents.classpath(module) : NOOP;
+  }
+
+  /** Loading one service class. */
+  static Span serviceClassLoading(String module, String className) {
+    return AVAILABLE ? JfrEvents.serviceClassLoading(module, className) : NOOP;
+  }
+
+  /**
+   * Generating one document of an API.
+   *
+   * @param document the kind of document, such as discovery, openapi or clientLib
+   */
+  static Span documentGeneration(String module, String api, String document) {
+    return AVAILABLE ? JfrEvents.documentGeneration(module, api, document) : NOOP;
+  }
+
+  /**
+   * Generating a document covering every API of a model. The API names the event carries are only
+   * computed when a recording enables it.
+   */
+  static Span documentGeneration(String module, ApiModel model, String document) {
+    return AVAILABLE ? JfrEvents.documentGeneration(module, model, document) : NOOP;
+  }
+
+  /** Extracting the sources of one generated archive. */
+  static Span extraction(String module, String api, File archive) {
+    return AVAILABLE ? JfrEvents.extraction(module, api, archive.getPath()) : NOOP;
+  }
+
+  /** Writing one file, with the bytes written set on the span. */
+  static Span fileWrite(String module, String api, File file) {
+    return AVAILABLE ? JfrEvents.fileWrite(module, api, file.getPath()) : NOOP;
+  }
+
+  /** Writing one file of a document covering every API of a model, see documentGeneration. */
+  static Span fileWrite(String module, ApiModel model, File file) {
+    return AVAILABLE ? JfrEvents.fileWrite(module, model, file.getPath()) : NOOP;
+  }
+
+  private static boolean isAvailable() {
+    try {
+      return JfrEvents.isAvailable();
+    } catch (LinkageError | RuntimeException e) {
+      // no jdk.jfr module, or a JVM started without the flight recorder
+      return false;
+    }
+  }
+}
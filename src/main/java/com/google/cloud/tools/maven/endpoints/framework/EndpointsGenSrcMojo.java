@@ -20,19 +20,28 @@ package com.google.cloud.tools.maven.endpoints.framework;
 import com.google.api.server.spi.tools.EndpointsTool;
 import com.google.api.server.spi.tools.GenClientLibAction;
 import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
@@ -43,13 +52,17 @@ import org.apache.maven.project.MavenProject;
 @Mojo(
   name = "generateSrc",
   requiresDependencyResolution = ResolutionScope.COMPILE,
-  defaultPhase = LifecyclePhase.GENERATE_SOURCES
+  defaultPhase = LifecyclePhase.GENERATE_SOURCES,
+  threadSafe = true
 )
 public class EndpointsGenSrcMojo extends AbstractMojo {
 
   @Parameter(defaultValue = "${project}", readonly = true)
   private MavenProject project;
 
+  @Parameter(defaultValue = "${plugin}", readonly = true)
+  private PluginDescriptor plugin;
+
   /** Output directory for generated sources. */
   @Parameter(
     defaultValue = "${project.build.directory}/generated-sources/endpoints",
@@ -61,48 +74,329 @@ public class EndpointsGenSrcMojo extends AbstractMojo {
   @Parameter(property = "endpoints.discoveryDocs", required = true)
   private List<File> discoveryDocs;
 
+  /**
+   * Number of discovery docs to generate client libraries for, and of generated sources to write,
+   * concurrently, defaults to the number of available processors.
+   */
+  @Parameter(property = "endpoints.threads")
+  private Integer threads;
+
+  /** Reuse client libraries generated earlier from identical discovery docs. */
+  @Parameter(defaultValue = "true", property = "endpoints.clientLibCache")
+  private boolean clientLibCache;
+
+  /** Directory of the client library cache, shared between projects. */
+  @Parameter(
+    defaultValue = "${user.home}/.cache/endpoints-framework/client-libs",
+    property = "endpoints.clientLibCacheDir"
+  )
+  private File clientLibCacheDir;
+
+  /** Size limit of the client library cache in megabytes. */
+  @Parameter(defaultValue = "256", property = "endpoints.clientLibCacheSize")
+  private long clientLibCacheSize;
+
+  /**
+   * Read generated sources of up to 64 KB straight into an array of their size, instead of through
+   * a growing buffer.
+   */
+  @Parameter(defaultValue = "true", property = "endpoints.smallFileFastPath")
+  private boolean smallFileFastPath;
+
+  /**
+   * Patterns of the resources and methods to generate client code for, matched against their dotted
+   * path below the API such as {@code users.photos.list}: {@code *} matches within a name and
+   * {@code **} across names. Schemas no generated method reaches are left out. All methods are
+   * generated when empty.
+   */
+  @Parameter(property = "endpoints.includeMethods")
+  private List<String> includeMethods;
+
+  /** Patterns of the resources and methods not to generate client code for, see includeMethods. */
+  @Parameter(property = "endpoints.excludeMethods")
+  private List<String> excludeMethods;
+
+  /**
+   * Bound the heap needed for large discovery docs: docs are validated with a streaming parser,
+   * hashed and sent to the client library generator straight from disk instead of being read into
+   * memory, and handled one at a time. The peak heap of each doc is reported in the build log,
+   * except in parallel builds, where the heap is measured for every module built at the same time.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.lowMemory")
+  private boolean lowMemory;
+
+  @Parameter(defaultValue = "${session}", readonly = true)
+  private MavenSession session;
+
+  // whether the peak heap of each doc is logged, the heap memory pools are shared by the whole JVM
+  private boolean measurePeakHeap;
+
+  // phase timings of the running goal, reported when it finishes
+  private GoalMetrics metrics;
+
   @Override
   public void execute() throws MojoExecutionException, MojoFailureException {
-    if (!generatedSrcDir.exists() && !generatedSrcDir.mkdirs()) {
+    metrics = new GoalMetrics("generateSrc", project.getArtifactId());
+    measurePeakHeap = lowMemory && !session.isParallel();
+    if (lowMemory && session.isParallel()) {
+      getLog()
+          .warn(
+              "The peak heap of each discovery doc is not reported in a parallel build, other"
+                  + " modules use the same heap at the same time");
+    }
+    if (!generatedSrcDir.mkdirs() && !generatedSrcDir.isDirectory()) {
       throw new MojoExecutionException(
           "Failed to create output directory: " + generatedSrcDir.getAbsolutePath());
     }
     project.addCompileSourceRoot(generatedSrcDir.getAbsolutePath());
-    File tempDir = Files.createTempDir();
-    File tempZipsDir = new File(tempDir, "zips");
-    tempZipsDir.mkdirs();
 
-    tempDir.deleteOnExit();
-    tempZipsDir.deleteOnExit();
+    // the endpoints tool only writes archives to disk, so keep them in a work directory owned by
+    // this execution and remove it as soon as the sources are extracted
+    File workDir = createWorkDir();
+    try {
+      // every discovery doc gets its own output directory, so concurrent runs never see each
+      // other's archives
+      List<File> zipsDirs = new ArrayList<>(discoveryDocs.size());
+      for (int i = 0; i < discoveryDocs.size(); i++) {
+        File zipsDir = new File(workDir, String.valueOf(i));
+        zipsDir.mkdirs();
+        zipsDirs.add(zipsDir);
+      }
+      List<File> zips;
+      try (GoalMetrics.Phase phase = metrics.start("generate")) {
+        zips = generateClientLibs(zipsDirs);
+      }
 
-    for (File discoveryDoc : discoveryDocs) {
+      // extract in discovery doc order, so the result does not depend on which doc finished first
+      try (GoalMetrics.Phase phase = metrics.start("extraction")) {
+        GeneratedSourceManifest manifest =
+            GeneratedSourceManifest.load(
+                new File(
+                    project.getBuild().getDirectory(), "endpoints-framework/generateSrc.manifest"),
+                generatedSrcDir);
+        try (SourceExtractor extractor =
+            new SourceExtractor(
+                manifest, getThreadCount(), smallFileFastPath, metrics.getModule())) {
+          for (int i = 0; i < discoveryDocs.size(); i++) {
+            File zip = zips.get(i);
+            if (measurePeakHeap) {
+              GoalMetrics.resetPeakHeapUsage();
+            }
+            try {
+              extractor.extract(zip, discoveryDocs.get(i));
+              if (measurePeakHeap) {
+                logPeakHeap("extracting the sources of", discoveryDocs.get(i));
+              }
+            } catch (IOException e) {
+              throw new MojoExecutionException(
+                  "Exception when unzipping : " + zip.getAbsolutePath(), e);
+            }
+          }
+        }
+        try {
+          manifest.save();
+        } catch (IOException e) {
+          throw new MojoExecutionException(
+              "Failed to update generated sources in " + generatedSrcDir.getAbsolutePath(), e);
+        }
+        getLog()
+            .info(
+                "Synchronized " + generatedSrcDir.getAbsolutePath() + ": " + manifest.getSummary());
+      }
+    } finally {
       try {
-        runEndpointsTools(discoveryDoc, tempZipsDir);
-      } catch (Exception e) {
-        throw new MojoExecutionException("EndpointsTool threw an exception : ", e);
+        MoreFiles.deleteRecursively(workDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+      } catch (IOException e) {
+        getLog().warn("Failed to delete " + workDir.getAbsolutePath(), e);
       }
+      metrics.report(new File(project.getBuild().getDirectory()), getLog());
     }
+  }
 
-    File[] zips =
-        tempZipsDir.listFiles(
-            new FileFilter() {
-              @Override
-              public boolean accept(File pathname) {
-                // mark all files in tempZips for cleanup
-                pathname.deleteOnExit();
-                return pathname.getName().toLowerCase().endsWith(".zip");
-              }
-            });
+  // the number of discovery docs generated, or files extracted, concurrently
+  private int getThreadCount() {
+    if (lowMemory) {
+      return 1;
+    }
+    return threads == null || threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+  }
 
-    for (File zip : zips) {
-      try {
-        unzipSrcDirs(zip, generatedSrcDir);
-      } catch (IOException e) {
-        throw new MojoExecutionException("Exception when unzipping : " + zip.getAbsolutePath(), e);
+  private File createWorkDir() throws MojoExecutionException {
+    File parent = new File(project.getBuild().getDirectory(), "endpoints-framework");
+    try {
+      Files.createParentDirs(new File(parent, "generateSrc"));
+      return java.nio.file.Files.createTempDirectory(parent.toPath(), "generateSrc").toFile();
+    } catch (IOException e) {
+      throw new MojoExecutionException(
+          "Failed to create work directory in " + parent.getAbsolutePath(), e);
+    }
+  }
+
+  // generate the client library of every discovery doc on a bounded pool, failing on the first
+  // error, and return the archives in discovery doc order
+  private List<File> generateClientLibs(List<File> zipsDirs) throws MojoExecutionException {
+    final ClientLibCache cache =
+        clientLibCache
+            ? new ClientLibCache(clientLibCacheDir, clientLibCacheSize * 1024 * 1024, getLog())
+            : null;
+    final String toolVersion = ClientLibCache.getToolVersion(plugin);
+    final DiscoveryDocFilter filter = new DiscoveryDocFilter(includeMethods, excludeMethods);
+
+    final int poolSize = Math.min(getThreadCount(), discoveryDocs.size());
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            poolSize,
+            new ThreadFactoryBuilder()
+                .setNameFormat("endpoints-generateSrc-%d")
+                .setDaemon(true)
+                .build());
+    try {
+      CompletionService<File> completionService = new ExecutorCompletionService<>(executor);
+      List<Future<File>> results = new ArrayList<>(discoveryDocs.size());
+      for (int i = 0; i < discoveryDocs.size(); i++) {
+        final File discoveryDoc = discoveryDocs.get(i);
+        final File zipsDir = zipsDirs.get(i);
+        results.add(
+            completionService.submit(
+                new Callable<File>() {
+                  @Override
+                  public File call() throws Exception {
+                    // summed over the worker threads, so the allocations are counted too
+                    try (GoalMetrics.Phase phase = metrics.start("clientLibGeneration");
+                        EndpointsEvents.Span span =
+                            EndpointsEvents.documentGeneration(
+                                metrics.getModule(), discoveryDoc.getName(), "clientLib")) {
+                      File doc =
+                          filter.isEmpty()
+                              ? discoveryDoc
+                              : filterDiscoveryDoc(discoveryDoc, filter, zipsDir);
+                      return generateClientLib(doc, zipsDir, cache, toolVersion);
+                    }
+                  }
+                }));
+      }
+      for (int i = 0; i < discoveryDocs.size(); i++) {
+        try {
+          completionService.take().get();
+        } catch (ExecutionException e) {
+          throw new MojoExecutionException("EndpointsTool threw an exception : ", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new MojoExecutionException("Interrupted while generating client libraries", e);
+        }
       }
+
+      List<File> zips = new ArrayList<>(results.size());
+      for (Future<File> result : results) {
+        zips.add(Futures.getUnchecked(result));
+      }
+      return zips;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // write the discovery doc without the filtered out methods and schemas next to its archive
+  private File filterDiscoveryDoc(File discoveryDoc, DiscoveryDocFilter filter, File outputDir)
+      throws IOException, MojoExecutionException {
+    File filteredDoc = new File(new File(outputDir, "filtered"), discoveryDoc.getName());
+    Files.createParentDirs(filteredDoc);
+    DiscoveryDocFilter.Result result;
+    try (GoalMetrics.Phase phase = metrics.start("filter")) {
+      result = filter.filter(discoveryDoc, filteredDoc);
+    }
+    if (result.getKeptMethods() == 0) {
+      throw new MojoExecutionException(
+          "includeMethods and excludeMethods leave no method of " + discoveryDoc.getAbsolutePath());
+    }
+    getLog().info("Filtered discovery doc " + discoveryDoc.getAbsolutePath() + ", " + result);
+    return filteredDoc;
+  }
+
+  private File generateClientLib(
+      File discoveryDoc, File outputDir, ClientLibCache cache, String toolVersion)
+      throws Exception {
+    if (lowMemory) {
+      return generateClientLibLowMemory(discoveryDoc, outputDir, cache, toolVersion);
+    }
+    String cacheKey = null;
+    if (cache != null) {
+      cacheKey =
+          ClientLibCache.computeKey(
+              Files.asCharSource(discoveryDoc, StandardCharsets.UTF_8).read(),
+              "java",
+              "maven",
+              toolVersion);
+      // restored into the work directory, where eviction by another build cannot remove it
+      File cached = new File(outputDir, "cached-client-lib.zip");
+      if (cache.restore(cacheKey, cached)) {
+        getLog().info("Using cached client library for " + discoveryDoc.getAbsolutePath());
+        return cached;
+      }
+    }
+
+    runEndpointsTools(discoveryDoc, outputDir);
+    File[] zips = outputDir.listFiles((dir, name) -> name.toLowerCase().endsWith(".zip"));
+    if (zips == null || zips.length != 1) {
+      throw new MojoExecutionException(
+          "Expected one client library for " + discoveryDoc + " in " + outputDir);
+    }
+    if (cache != null) {
+      cache.put(cacheKey, zips[0]);
+    }
+    return zips[0];
+  }
+
+  // generateClientLib without ever holding the discovery doc in memory
+  private File generateClientLibLowMemory(
+      File discoveryDoc, File outputDir, ClientLibCache cache, String toolVersion)
+      throws IOException {
+    if (measurePeakHeap) {
+      GoalMetrics.resetPeakHeapUsage();
     }
+    StreamingDiscoveryDoc doc = StreamingDiscoveryDoc.read(discoveryDoc);
+    getLog()
+        .info(
+            "Read discovery doc "
+                + discoveryDoc.getAbsolutePath()
+                + " of "
+                + doc.getApi()
+                + " with "
+                + doc.getSchemaCount()
+                + " schemas");
+    File clientLib;
+    String cacheKey =
+        cache == null
+            ? null
+            : ClientLibCache.computeKey(discoveryDoc, "java", "maven", toolVersion);
+    File cached = new File(outputDir, "cached-client-lib.zip");
+    if (cache != null && cache.restore(cacheKey, cached)) {
+      getLog().info("Using cached client library for " + discoveryDoc.getAbsolutePath());
+      clientLib = cached;
+    } else {
+      getLog().info("Generating client library for " + doc.getApi() + " from a streamed request");
+      clientLib = doc.generateClientLib("java", "maven", outputDir);
+      if (cache != null) {
+        cache.put(cacheKey, clientLib);
+      }
+    }
+    if (measurePeakHeap) {
+      logPeakHeap("generating the client library of", discoveryDoc);
+    }
+    return clientLib;
+  }
 
-    getLog().info(tempDir.getAbsolutePath());
+  private void logPeakHeap(String step, File discoveryDoc) {
+    getLog()
+        .info(
+            "Peak heap while "
+                + step
+                + " "
+                + discoveryDoc.getName()
+                + ": "
+                + GoalMetrics.getPeakHeapUsedBytes() / (1024 * 1024)
+                + " MB");
   }
 
   private void runEndpointsTools(File discoveryDoc, File outputDir) throws Exception {
@@ -121,42 +415,4 @@ public class EndpointsGenSrcMojo extends AbstractMojo {
     getLog().info("Endpoints Tool params : " + params.toString());
     new EndpointsTool().execute(params.toArray(new String[params.size()]));
   }
-
-  // Unzip out the <api-name>/src/main/java directories out from the zip
-  // this method is very dependant on the endpoints archive following a convention
-  private void unzipSrcDirs(File archive, File destinationDir) throws IOException {
-
-    try (ZipFile zipFile = new ZipFile(archive)) {
-      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-
-      if (!zipEntries.hasMoreElements()) {
-        return;
-      }
-
-      // this appears to be dependant on the zip file generator
-      // (presumably our generator always uses "/"), but if it fails on
-      // Windows, this is probably your culprit
-      String srcMainRoot = zipEntries.nextElement().getName() + "src/main/java";
-
-      while (zipEntries.hasMoreElements()) {
-        ZipEntry zipEntry = zipEntries.nextElement();
-
-        if (!zipEntry.isDirectory()) {
-          if (zipEntry.getName().startsWith(srcMainRoot)) {
-
-            File zipEntryDestination =
-                new File(destinationDir, zipEntry.getName().substring(srcMainRoot.length()));
-
-            if (!zipEntryDestination.exists()) {
-              Files.createParentDirs(zipEntryDestination);
-              java.nio.file.Files.copy(
-                  zipFile.getInputStream(zipEntry),
-                  zipEntryDestination.toPath(),
-                  StandardCopyOption.REPLACE_EXISTING);
-            }
-          }
-        }
-      }
-    }
-  }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * Closes the pooled service class loaders when the build ends. Maven only runs it when the plugin
+ * is declared with extensions enabled.
+ */
+@Named("endpoints-framework")
+@Singleton
+public class EndpointsLifecycleParticipant extends AbstractMavenLifecycleParticipant {
+
+  @Override
+  public void afterSessionEnd(MavenSession session) {
+    ClassLoaderPool.closeAll();
+  }
+}
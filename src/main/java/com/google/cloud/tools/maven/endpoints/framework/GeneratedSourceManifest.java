@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The files generateSrc owns in its output directory and the hash of their content. Each run
+ * rewrites only the files whose content changed, deletes the files no discovery doc generates any
+ * more and leaves every other file untouched, modification time included, so the incremental
+ * compiler only recompiles what changed.
+ *
+ * <p>The manifest is a properties file: {@code dir} holds the output directory and every other key
+ * is the path of an owned file relative to it, mapped to the SHA-256 of its content. A manifest of
+ * another output directory is treated as empty.
+ */
+class GeneratedSourceManifest {
+
+  private static final String DIR = "dir";
+
+  private final File manifestFile;
+  private final File outputDir;
+  private final Properties previous;
+  private final Properties current = new Properties();
+  private final Set<String> written = new HashSet<>();
+  private int unchanged;
+
+  private GeneratedSourceManifest(File manifestFile, File outputDir, Properties previous) {
+    this.manifestFile = manifestFile;
+    this.outputDir = outputDir;
+    this.previous = previous;
+    current.setProperty(DIR, outputDir.getAbsolutePath());
+  }
+
+  /** Read the manifest of the last run, a missing or unreadable file is treated as empty. */
+  static GeneratedSourceManifest load(File manifestFile, File outputDir) {
+    Properties previous = new Properties();
+    if (manifestFile.isFile()) {
+      try (InputStream in = new FileInputStream(manifestFile)) {
+        previous.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        previous.clear();
+      }
+    }
+    if (!outputDir.getAbsolutePath().equals(previous.getProperty(DIR))) {
+      previous.clear();
+    }
+    previous.remove(DIR);
+    return new GeneratedSourceManifest(manifestFile, outputDir, previous);
+  }
+
+  /**
+   * Own a file of the output directory with the given content, writing it only if the file on disk
+   * differs. The directory of the file must exist. Safe to call from several threads for different
+   * files.
+   *
+   * @param relativePath the path of the file relative to the output directory, with {@code /}
+   * @return whether the file was written
+   */
+  boolean put(String relativePath, byte[] content, HashCode hash) throws IOException {
+    String hashString = hash.toString();
+    File file = resolve(relativePath);
+    current.setProperty(relativePath, hashString);
+    if (file.isFile() && file.length() == content.length) {
+      // trust the manifest for files this goal wrote, compare anything else
+      if (hashString.equals(previous.getProperty(relativePath))
+          || Files.asByteSource(file).hash(Hashing.sha256()).equals(hash)) {
+        synchronized (this) {
+          unchanged++;
+        }
+        return false;
+      }
+    }
+    try (FileChannel channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    synchronized (this) {
+      written.add(relativePath);
+    }
+    return true;
+  }
+
+  /**
+   * Delete the files the last run owned that were not put in this run, and the directories they
+   * leave empty, then record the files of this run.
+   */
+  void save() throws IOException {
+    for (String orphan : getOrphans()) {
+      File file = resolve(orphan);
+      if (file.isFile() && !file.delete()) {
+        throw new IOException("Failed to delete " + file.getAbsolutePath());
+      }
+      // only empty directories can be deleted
+      File dir = file.getParentFile();
+      while (dir != null && !dir.equals(outputDir) && dir.delete()) {
+        dir = dir.getParentFile();
+      }
+    }
+    Files.createParentDirs(manifestFile);
+    try (OutputStream out = new FileOutputStream(manifestFile)) {
+      current.store(out, null);
+    }
+  }
+
+  /**
+   * The file at a path of the output directory.
+   *
+   * @throws IOException if the path leaves the output directory, with {@code ../} or as an absolute
+   *     path
+   */
+  File resolve(String relativePath) throws IOException {
+    File file = ClientLibCompiler.resolveWithin(outputDir, relativePath);
+    if (file == null) {
+      throw new IOException(
+          "Generated source " + relativePath + " is outside of " + outputDir.getAbsolutePath());
+    }
+    return file;
+  }
+
+  /** The files of the last run that are not put in this run. */
+  Set<String> getOrphans() {
+    Set<String> orphans = new TreeSet<>(previous.stringPropertyNames());
+    orphans.removeAll(current.stringPropertyNames());
+    return orphans;
+  }
+
+  /** A summary of the files written, deleted and left untouched. */
+  synchronized String getSummary() {
+    return "wrote "
+        + written.size()
+        + ", deleted "
+        + getOrphans().size()
+        + " and kept "
+        + unchanged
+        + " unchanged generated sources";
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Wall time, allocation and heap use of the phases of one goal execution. A phase that runs more
+ * than once, or on several threads, is reported as the sum of its runs.
+ *
+ * <p>The report is written as JSON to {@code target/endpoints-metrics/<goal>.json} and summarized
+ * in the build log, so the numbers can be tracked in CI.
+ */
+class GoalMetrics {
+
+  private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+  private final String goal;
+  private final String module;
+  private final long startNanos = System.nanoTime();
+  private final Map<String, PhaseTotal> phases = new LinkedHashMap<>();
+  private long peakHeapUsedBytes = heapUsedBytes();
+
+  /** Metrics of a goal running for a module, named by its artifact id. */
+  GoalMetrics(String goal, String module) {
+    this.goal = goal;
+    this.module = module;
+  }
+
+  /** The module the goal runs for, which the flight recorder events of its work carry. */
+  String getModule() {
+    return module;
+  }
+
+  /** Start timing a phase on the current thread, the phase ends when the result is closed. */
+  Phase start(String name) {
+    return new Phase(name);
+  }
+
+  /** Write the JSON report into the build directory and log a one line summary. */
+  void report(File buildDirectory, Log log) {
+    long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    StringBuilder summary = new StringBuilder(goal + " took " + totalMillis + " ms");
+    List<Map<String, Object>> phaseReports = new ArrayList<>();
+    Map<String, Object> report = new LinkedHashMap<>();
+    synchronized (this) {
+      String separator = ": ";
+      for (Map.Entry<String, PhaseTotal> entry : phases.entrySet()) {
+        PhaseTotal total = entry.getValue();
+        long millis = TimeUnit.NANOSECONDS.toMillis(total.nanos);
+        summary.append(separator).append(entry.getKey()).append(' ').append(millis).append(" ms");
+        separator = ", ";
+
+        Map<String, Object> phaseReport = new LinkedHashMap<>();
+        phaseReport.put("name", entry.getKey());
+        phaseReport.put("count", total.count);
+        phaseReport.put("millis", millis);
+        phaseReport.put("allocatedBytes", total.allocatedBytes);
+        phaseReport.put("heapUsedBytes", total.heapUsedBytes);
+        phaseReports.add(phaseReport);
+      }
+      report.put("goal", goal);
+      report.put("module", module);
+      report.put("timestamp", System.currentTimeMillis());
+      report.put("totalMillis", totalMillis);
+      report.put("peakHeapUsedBytes", peakHeapUsedBytes);
+      report.put("phases", phaseReports);
+      summary.append("; peak heap ").append(peakHeapUsedBytes / (1024 * 1024)).append(" MB");
+    }
+    log.info(summary.toString());
+
+    File reportFile = new File(buildDirectory, "endpoints-metrics/" + goal + ".json");
+    try {
+      Files.createParentDirs(reportFile);
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportFile, report);
+    } catch (IOException e) {
+      log.warn("Failed to write " + reportFile.getAbsolutePath(), e);
+    }
+  }
+
+  private synchronized void record(String name, long nanos, long allocatedBytes) {
+    long heapUsedBytes = heapUsedBytes();
+    peakHeapUsedBytes = Math.max(peakHeapUsedBytes, heapUsedBytes);
+    PhaseTotal total = phases.get(name);
+    if (total == null) {
+      total = new PhaseTotal();
+      phases.put(name, total);
+    }
+    total.count++;
+    total.nanos += nanos;
+    total.allocatedBytes = allocatedBytes < 0 ? -1 : total.allocatedBytes + allocatedBytes;
+    total.heapUsedBytes = heapUsedBytes;
+  }
+
+  /**
+   * Restart the peak usage of the heap memory pools, see getPeakHeapUsedBytes(). The pools belong
+   * to the whole JVM, so this also restarts the peak of any goal running at the same time, and
+   * neither peak is meaningful in a parallel build.
+   */
+  static void resetPeakHeapUsage() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * The heap used at its peak since resetPeakHeapUsage(), summed over the memory pools. The pools
+   * may peak at different times, so this is an upper bound.
+   */
+  static long getPeakHeapUsedBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static long heapUsedBytes() {
+    return MEMORY.getHeapMemoryUsage().getUsed();
+  }
+
+  private static boolean isAllocationSupported() {
+    try {
+      return THREADS instanceof com.sun.management.ThreadMXBean
+          && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+    } catch (LinkageError | UnsupportedOperationException e) {
+      return false;
+    }
+  }
+
+  // bytes allocated by the current thread so far, -1 if the JVM cannot tell
+  private static long allocatedBytes() {
+    if (!ALLOCATION_SUPPORTED) {
+      return -1;
+    }
+    return ((com.sun.management.ThreadMXBean) THREADS)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static final class PhaseTotal {
+    private int count;
+    private long nanos;
+    private long allocatedBytes;
+    private long heapUsedBytes;
+  }
+
+  /** A running phase. */
+  final class Phase implements AutoCloseable {
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final long startAllocatedBytes = allocatedBytes();
+
+    private Phase(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void close() {
+      long allocated = startAllocatedBytes < 0 ? -1 : allocatedBytes() - startAllocatedBytes;
+      record(name, System.nanoTime() - startNanos, allocated);
+    }
+  }
+}
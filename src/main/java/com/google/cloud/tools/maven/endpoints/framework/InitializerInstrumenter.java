@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Adds calls to StaticInitializerTimer to the static initializer of a class file, so the time it
+ * takes is recorded when it runs. {@code StaticInitializerTimer.enter} is called first and {@code
+ * StaticInitializerTimer.exit} before every {@code return}, each with the class itself.
+ *
+ * <p>Inserting the calls moves the code, so branch offsets, switch padding, the exception table,
+ * line numbers, local variable ranges and the stack map frames are rewritten with it. A class file
+ * this does not understand, such as one using {@code jsr} or carrying type annotations on its
+ * initializer's code, is left as it is and its initializer is not timed.
+ */
+final class InitializerInstrumenter {
+
+  private static final String STATIC_INITIALIZER = "<clinit>";
+  private static final String TIMER = StaticInitializerTimer.class.getName().replace('.', '/');
+  // ldc_w of a Class constant needs class files of Java 5
+  private static final int MIN_MAJOR_VERSION = 49;
+
+  private static final int LDC_W = 0x13;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int RETURN = 0xb1;
+  private static final int TABLESWITCH = 0xaa;
+  private static final int LOOKUPSWITCH = 0xab;
+  private static final int WIDE = 0xc4;
+  private static final int GOTO_W = 0xc8;
+  // ldc_w this class, invokestatic the timer
+  private static final int CALL_LENGTH = 6;
+
+  private InitializerInstrumenter() {}
+
+  /**
+   * The class file with its static initializer timed.
+   *
+   * @return the instrumented class file, or null if it has no static initializer or it cannot be
+   *     instrumented
+   */
+  static byte[] instrument(byte[] classFile) {
+    try {
+      return rewrite(classFile);
+    } catch (BufferUnderflowException
+        | IndexOutOfBoundsException
+        | IllegalArgumentException
+        | IOException e) {
+      // left to the JVM, which reports malformed class files when they are defined
+      return null;
+    }
+  }
+
+  private static byte[] rewrite(byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    ConstantPool constantPool = ConstantPool.read(buffer);
+    int majorVersion = buffer.getShort(6) & 0xFFFF;
+    final int constantPoolCount = buffer.getShort(8) & 0xFFFF;
+    final int constantPoolEnd = buffer.position();
+    if (majorVersion < MIN_MAJOR_VERSION) {
+      return null;
+    }
+    ConstantPool.skip(buffer, 2); // access flags
+    final int thisClass = buffer.getShort() & 0xFFFF;
+    ConstantPool.skip(buffer, 2); // super class
+    ConstantPool.skip(buffer, 2 * (buffer.getShort() & 0xFFFF)); // interfaces
+    int fieldsCount = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < fieldsCount; i++) {
+      ConstantPool.skip(buffer, 6); // access flags, name and descriptor
+      skipAttributes(buffer);
+    }
+
+    // the Code attribute of the static initializer
+    int codeStart = -1;
+    int codeEnd = -1;
+    int methodsCount = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < methodsCount && codeStart < 0; i++) {
+      ConstantPool.skip(buffer, 2); // access flags
+      String methodName = constantPool.getUtf8(buffer.getShort() & 0xFFFF);
+      ConstantPool.skip(buffer, 2); // descriptor
+      int attributesCount = buffer.getShort() & 0xFFFF;
+      for (int j = 0; j < attributesCount; j++) {
+        int attributeStart = buffer.position();
+        String attributeName = constantPool.getUtf8(buffer.getShort() & 0xFFFF);
+        int length = buffer.getInt();
+        ConstantPool.skip(buffer, length);
+        if (STATIC_INITIALIZER.equals(methodName) && "Code".equals(attributeName)) {
+          codeStart = attributeStart;
+          codeEnd = buffer.position();
+        }
+      }
+    }
+    if (codeStart < 0) {
+      return null;
+    }
+
+    // the timer's methods go to the end of the constant pool
+    final int timerClass = constantPoolCount + 1;
+    final int enter = constantPoolCount + 7;
+    final int exit = constantPoolCount + 8;
+    if (constantPoolCount + 9 > 0xFFFF) {
+      return null;
+    }
+    ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(constants);
+    out.writeByte(1); // Utf8
+    out.writeUTF(TIMER);
+    out.writeByte(7); // Class
+    out.writeShort(constantPoolCount);
+    out.writeByte(1);
+    out.writeUTF("enter");
+    out.writeByte(1);
+    out.writeUTF("exit");
+    out.writeByte(1);
+    out.writeUTF("(Ljava/lang/Class;)V");
+    out.writeByte(12); // NameAndType
+    out.writeShort(constantPoolCount + 2);
+    out.writeShort(constantPoolCount + 4);
+    out.writeByte(12);
+    out.writeShort(constantPoolCount + 3);
+    out.writeShort(constantPoolCount + 4);
+    out.writeByte(10); // Methodref
+    out.writeShort(timerClass);
+    out.writeShort(constantPoolCount + 5);
+    out.writeByte(10);
+    out.writeShort(timerClass);
+    out.writeShort(constantPoolCount + 6);
+
+    byte[] code =
+        rewriteCode(
+            ByteBuffer.wrap(bytes, codeStart, codeEnd - codeStart).slice(),
+            constantPool,
+            thisClass,
+            enter,
+            exit);
+    if (code == null) {
+      return null;
+    }
+
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(bytes.length + 256);
+    rewritten.write(bytes, 0, 8);
+    rewritten.write((constantPoolCount + 9) >> 8);
+    rewritten.write(constantPoolCount + 9);
+    rewritten.write(bytes, 10, constantPoolEnd - 10);
+    constants.writeTo(rewritten);
+    rewritten.write(bytes, constantPoolEnd, codeStart - constantPoolEnd);
+    rewritten.write(code);
+    rewritten.write(bytes, codeEnd, bytes.length - codeEnd);
+    return rewritten.toByteArray();
+  }
+
+  // the Code attribute with the timer calls added, or null if it cannot be rewritten
+  private static byte[] rewriteCode(
+      ByteBuffer attribute, ConstantPool constantPool, int thisClass, int enter, int exit)
+      throws IOException {
+    final int nameIndex = attribute.getShort() & 0xFFFF;
+    attribute.getInt(); // length
+    final int maxStack = attribute.getShort() & 0xFFFF;
+    final int maxLocals = attribute.getShort() & 0xFFFF;
+    int codeLength = attribute.getInt();
+    byte[] code = new byte[codeLength];
+    attribute.get(code);
+
+    // where each instruction moves to, -1 inside an instruction
+    int[] moved = new int[codeLength + 1];
+    Arrays.fill(moved, -1);
+    int position = CALL_LENGTH;
+    for (int offset = 0; offset < codeLength; ) {
+      moved[offset] = position;
+      int opcode = code[offset] & 0xFF;
+      int length = instructionLength(code, offset);
+      if (length <= 0) {
+        return null;
+      }
+      if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+        position += length - padding(offset) + padding(position);
+      } else if (opcode == RETURN) {
+        position += CALL_LENGTH + 1;
+      } else {
+        position += length;
+      }
+      offset += length;
+    }
+    moved[codeLength] = position;
+    if (position > 0xFFFF) {
+      return null;
+    }
+
+    ByteArrayOutputStream newCode = new ByteArrayOutputStream(position);
+    DataOutputStream out = new DataOutputStream(newCode);
+    writeCall(out, thisClass, enter);
+    for (int offset = 0; offset < codeLength; ) {
+      int opcode = code[offset] & 0xFF;
+      int length = instructionLength(code, offset);
+      if (opcode == RETURN) {
+        writeCall(out, thisClass, exit);
+        out.writeByte(RETURN);
+      } else if ((opcode >= 0x99 && opcode <= 0xa7) || opcode == 0xc6 || opcode == 0xc7) {
+        // conditional branches, goto, ifnull and ifnonnull
+        int branch = jump(moved, offset, getShort(code, offset + 1));
+        if (branch < Short.MIN_VALUE || branch > Short.MAX_VALUE) {
+          return null;
+        }
+        out.writeByte(opcode);
+        out.writeShort(branch);
+      } else if (opcode == GOTO_W) {
+        out.writeByte(opcode);
+        out.writeInt(jump(moved, offset, getInt(code, offset + 1)));
+      } else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+        int operands = offset + 1 + padding(offset);
+        out.writeByte(opcode);
+        for (int i = padding(moved[offset]); i > 0; i--) {
+          out.writeByte(0);
+        }
+        out.writeInt(jump(moved, offset, getInt(code, operands))); // default
+        if (opcode == TABLESWITCH) {
+          int low = getInt(code, operands + 4);
+          int high = getInt(code, operands + 8);
+          out.writeInt(low);
+          out.writeInt(high);
+          for (int i = 0; i <= high - low; i++) {
+            out.writeInt(jump(moved, offset, getInt(code, operands + 12 + 4 * i)));
+          }
+        } else {
+          int pairs = getInt(code, operands + 4);
+          out.writeInt(pairs);
+          for (int i = 0; i < pairs; i++) {
+            out.writeInt(getInt(code, operands + 8 + 8 * i));
+            out.writeInt(jump(moved, offset, getInt(code, operands + 12 + 8 * i)));
+          }
+        }
+      } else {
+        out.write(code, offset, length);
+      }
+      offset += length;
+    }
+
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(newCode.size() + 64);
+    DataOutputStream body = new DataOutputStream(rewritten);
+    // the call pushes the class, return needs no stack of its own
+    body.writeShort(Math.min(maxStack + 1, 0xFFFF));
+    body.writeShort(maxLocals);
+    body.writeInt(newCode.size());
+    newCode.writeTo(body);
+
+    int exceptionTableLength = attribute.getShort() & 0xFFFF;
+    body.writeShort(exceptionTableLength);
+    for (int i = 0; i < exceptionTableLength; i++) {
+      body.writeShort(move(moved, attribute.getShort() & 0xFFFF)); // start
+      body.writeShort(move(moved, attribute.getShort() & 0xFFFF)); // end
+      body.writeShort(move(moved, attribute.getShort() & 0xFFFF)); // handler
+      body.writeShort(attribute.getShort()); // catch type
+    }
+
+    int attributesCount = attribute.getShort() & 0xFFFF;
+    body.writeShort(attributesCount);
+    for (int i = 0; i < attributesCount; i++) {
+      int attributeName = attribute.getShort() & 0xFFFF;
+      int length = attribute.getInt();
+      ByteBuffer info = attribute.slice();
+      info.limit(length);
+      ConstantPool.skip(attribute, length);
+      byte[] rewrittenInfo;
+      switch (constantPool.getUtf8(attributeName)) {
+        case "LineNumberTable":
+          rewrittenInfo = rewriteLineNumbers(info, moved);
+          break;
+        case "LocalVariableTable":
+        case "LocalVariableTypeTable":
+          rewrittenInfo = rewriteLocalVariables(info, moved);
+          break;
+        case "StackMapTable":
+          rewrittenInfo = rewriteStackMap(info, moved);
+          break;
+        default:
+          // other attributes of the code may refer to offsets this does not know how to move
+          return null;
+      }
+      body.writeShort(attributeName);
+      body.writeInt(rewrittenInfo.length);
+      body.write(rewrittenInfo);
+    }
+
+    ByteArrayOutputStream codeAttribute = new ByteArrayOutputStream(rewritten.size() + 6);
+    DataOutputStream header = new DataOutputStream(codeAttribute);
+    header.writeShort(nameIndex);
+    header.writeInt(rewritten.size());
+    rewritten.writeTo(codeAttribute);
+    return codeAttribute.toByteArray();
+  }
+
+  private static void writeCall(DataOutputStream out, int thisClass, int method)
+      throws IOException {
+    out.writeByte(LDC_W);
+    out.writeShort(thisClass);
+    out.writeByte(INVOKESTATIC);
+    out.writeShort(method);
+  }
+
+  private static byte[] rewriteLineNumbers(ByteBuffer info, int[] moved) throws IOException {
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(info.remaining());
+    DataOutputStream out = new DataOutputStream(rewritten);
+    int count = info.getShort() & 0xFFFF;
+    out.writeShort(count);
+    for (int i = 0; i < count; i++) {
+      out.writeShort(move(moved, info.getShort() & 0xFFFF)); // start
+      out.writeShort(info.getShort()); // line
+    }
+    return rewritten.toByteArray();
+  }
+
+  private static byte[] rewriteLocalVariables(ByteBuffer info, int[] moved) throws IOException {
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(info.remaining());
+    DataOutputStream out = new DataOutputStream(rewritten);
+    int count = info.getShort() & 0xFFFF;
+    out.writeShort(count);
+    for (int i = 0; i < count; i++) {
+      int start = info.getShort() & 0xFFFF;
+      int length = info.getShort() & 0xFFFF;
+      out.writeShort(move(moved, start));
+      out.writeShort(move(moved, start + length) - move(moved, start));
+      out.writeShort(info.getShort()); // name
+      out.writeShort(info.getShort()); // descriptor or signature
+      out.writeShort(info.getShort()); // index
+    }
+    return rewritten.toByteArray();
+  }
+
+  // frames are stored as offset deltas, which are recomputed from the moved offsets
+  private static byte[] rewriteStackMap(ByteBuffer info, int[] moved) throws IOException {
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(info.remaining() + 16);
+    DataOutputStream out = new DataOutputStream(rewritten);
+    int count = info.getShort() & 0xFFFF;
+    out.writeShort(count);
+    int offset = -1;
+    int newOffset = -1;
+    for (int i = 0; i < count; i++) {
+      int frameType = info.get() & 0xFF;
+      int delta;
+      if (frameType < 128) {
+        delta = frameType < 64 ? frameType : frameType - 64;
+      } else if (frameType >= 247) {
+        delta = info.getShort() & 0xFFFF;
+      } else {
+        throw new IllegalArgumentException("Unknown stack map frame type " + frameType);
+      }
+      offset += delta + 1;
+      int newDelta = move(moved, offset) - newOffset - 1;
+      newOffset += newDelta + 1;
+
+      if (frameType < 64 || frameType == 251) {
+        // same frame
+        if (newDelta < 64) {
+          out.writeByte(newDelta);
+        } else {
+          out.writeByte(251);
+          out.writeShort(newDelta);
+        }
+      } else if (frameType < 128 || frameType == 247) {
+        // same locals, one stack item
+        if (newDelta < 64) {
+          out.writeByte(64 + newDelta);
+        } else {
+          out.writeByte(247);
+          out.writeShort(newDelta);
+        }
+        copyVerificationTypes(info, out, 1, moved);
+      } else if (frameType < 255) {
+        // chop or append
+        out.writeByte(frameType);
+        out.writeShort(newDelta);
+        copyVerificationTypes(info, out, Math.max(frameType - 251, 0), moved);
+      } else {
+        // full frame
+        out.writeByte(frameType);
+        out.writeShort(newDelta);
+        int locals = info.getShort() & 0xFFFF;
+        out.writeShort(locals);
+        copyVerificationTypes(info, out, locals, moved);
+        int stack = info.getShort() & 0xFFFF;
+        out.writeShort(stack);
+        copyVerificationTypes(info, out, stack, moved);
+      }
+    }
+    return rewritten.toByteArray();
+  }
+
+  // uninitialized types carry the offset of their new instruction, which moves too
+  private static void copyVerificationTypes(
+      ByteBuffer info, DataOutputStream out, int count, int[] moved) throws IOException {
+    for (int i = 0; i < count; i++) {
+      int tag = info.get() & 0xFF;
+      out.writeByte(tag);
+      if (tag == 7) {
+        out.writeShort(info.getShort()); // class
+      } else if (tag == 8) {
+        out.writeShort(move(moved, info.getShort() & 0xFFFF));
+      } else if (tag > 8) {
+        throw new IllegalArgumentException("Unknown verification type " + tag);
+      }
+    }
+  }
+
+  private static int move(int[] moved, int offset) {
+    if (offset >= moved.length || moved[offset] < 0) {
+      throw new IllegalArgumentException("Offset " + offset + " is not an instruction");
+    }
+    return moved[offset];
+  }
+
+  // the moved relative offset of a branch
+  private static int jump(int[] moved, int offset, int branch) {
+    return move(moved, offset + branch) - moved[offset];
+  }
+
+  // switch operands are aligned to four bytes from the start of the code
+  private static int padding(int offset) {
+    return 3 - offset % 4;
+  }
+
+  /** The length of the instruction at an offset, 0 for those this does not rewrite. */
+  private static int instructionLength(byte[] code, int offset) {
+    int opcode = code[offset] & 0xFF;
+    if (opcode <= 0x0f
+        || (opcode >= 0x1a && opcode <= 0x35)
+        || (opcode >= 0x3b && opcode <= 0x83)
+        || (opcode >= 0x85 && opcode <= 0x98)
+        || (opcode >= 0xac && opcode <= 0xb1)
+        || opcode == 0xbe
+        || opcode == 0xbf
+        || opcode == 0xc2
+        || opcode == 0xc3) {
+      return 1;
+    }
+    if (opcode == 0x10
+        || opcode == 0x12
+        || (opcode >= 0x15 && opcode <= 0x19)
+        || (opcode >= 0x36 && opcode <= 0x3a)
+        || opcode == 0xbc) {
+      return 2;
+    }
+    if (opcode == 0x11
+        || opcode == 0x13
+        || opcode == 0x14
+        || opcode == 0x84
+        || (opcode >= 0x99 && opcode <= 0xa7)
+        || (opcode >= 0xb2 && opcode <= 0xb8)
+        || opcode == 0xbb
+        || opcode == 0xbd
+        || opcode == 0xc0
+        || opcode == 0xc1
+        || opcode == 0xc6
+        || opcode == 0xc7) {
+      return 3;
+    }
+    if (opcode == 0xc5) {
+      return 4;
+    }
+    if (opcode == 0xb9 || opcode == 0xba || opcode == GOTO_W) {
+      return 5;
+    }
+    if (opcode == WIDE) {
+      return (code[offset + 1] & 0xFF) == 0x84 ? 6 : 4;
+    }
+    int operands = offset + 1 + padding(offset);
+    if (opcode == TABLESWITCH) {
+      int low = getInt(code, operands + 4);
+      int high = getInt(code, operands + 8);
+      return operands - offset + 12 + 4 * (high - low + 1);
+    }
+    if (opcode == LOOKUPSWITCH) {
+      return operands - offset + 8 + 8 * getInt(code, operands + 4);
+    }
+    // jsr, jsr_w and ret need their subroutines moved too, they are not used since Java 6
+    return 0;
+  }
+
+  private static short getShort(byte[] code, int offset) {
+    return (short) ((code[offset] & 0xFF) << 8 | (code[offset + 1] & 0xFF));
+  }
+
+  private static int getInt(byte[] code, int offset) {
+    return (code[offset] & 0xFF) << 24
+        | (code[offset + 1] & 0xFF) << 16
+        | (code[offset + 2] & 0xFF) << 8
+        | (code[offset + 3] & 0xFF);
+  }
+
+  private static void skipAttributes(ByteBuffer buffer) {
+    int attributesCount = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < attributesCount; i++) {
+      ConstantPool.skip(buffer, 2); // name
+      ConstantPool.skip(buffer, buffer.getInt());
+    }
+  }
+}
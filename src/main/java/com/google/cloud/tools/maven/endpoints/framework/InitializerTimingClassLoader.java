@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+
+/**
+ * Loads classes with their static initializers timed, see StaticInitializerTimer, so the
+ * initializers that still run while a goal uses the service classes are reported with their cost.
+ * It loads the dependencies when the module's own classes are loaded without their initializers.
+ */
+class InitializerTimingClassLoader extends URLClassLoader {
+
+  static {
+    registerAsParallelCapable();
+  }
+
+  private final StaticInitializerTimer.Initializers initializers =
+      new StaticInitializerTimer.Initializers();
+
+  InitializerTimingClassLoader(URL[] urls, ClassLoader parent) {
+    super(urls, parent);
+  }
+
+  /** The static initializers this loader kept, and how long those that ran took. */
+  StaticInitializerTimer.Initializers getInitializers() {
+    return initializers;
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    URL resource = findResource(name.replace('.', '/') + ".class");
+    if (resource == null) {
+      throw new ClassNotFoundException(name);
+    }
+    byte[] classFile;
+    try (InputStream in = resource.openStream()) {
+      classFile = ByteStreams.toByteArray(in);
+    } catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+
+    definePackageOf(name);
+    byte[] defined = transform(name, classFile);
+    return defineClass(name, defined, 0, defined.length, getCodeSource(resource));
+  }
+
+  /** The class file to define for a class, with its static initializer timed. */
+  byte[] transform(String name, byte[] classFile) {
+    byte[] instrumented = InitializerInstrumenter.instrument(classFile);
+    if (instrumented == null) {
+      return classFile;
+    }
+    initializers.kept(name);
+    return instrumented;
+  }
+
+  private void definePackageOf(String className) {
+    int lastDot = className.lastIndexOf('.');
+    if (lastDot < 0) {
+      return;
+    }
+    String packageName = className.substring(0, lastDot);
+    try {
+      definePackage(packageName, null, null, null, null, null, null, null);
+    } catch (IllegalArgumentException e) {
+      // defined for an earlier class of the package, or by another thread in the meantime
+    }
+  }
+
+  // the classpath element of a class file, as URLClassLoader would give it
+  private CodeSource getCodeSource(URL resource) {
+    String location = resource.toString();
+    for (URL url : getURLs()) {
+      String element = url.toString();
+      if (location.startsWith(element) || location.startsWith("jar:" + element + "!/")) {
+        return new CodeSource(url, (CodeSigner[]) null);
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The flight recorder event types behind EndpointsEvents. Only loaded on JVMs that have the {@code
+ * jdk.jfr} module, EndpointsEvents checks that first.
+ */
+final class JfrEvents {
+
+  private static final String PREFIX = "com.google.cloud.tools.maven.endpoints.";
+  private static final String CATEGORY = "Endpoints Framework";
+
+  private static final EventType CLASSPATH = EventType.getEventType(ClasspathEvent.class);
+  private static final EventType SERVICE_CLASS_LOADING =
+      EventType.getEventType(ServiceClassLoadingEvent.class);
+  private static final EventType DOCUMENT_GENERATION =
+      EventType.getEventType(DocumentGenerationEvent.class);
+  private static final EventType EXTRACTION = EventType.getEventType(ExtractionEvent.class);
+  private static final EventType FILE_WRITE = EventType.getEventType(FileWriteEvent.class);
+
+  private JfrEvents() {}
+
+  static boolean isAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  static EndpointsEvents.Span classpath(String module) {
+    if (!CLASSPATH.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    return new ClasspathEvent().begin(module);
+  }
+
+  static EndpointsEvents.Span serviceClassLoading(String module, String className) {
+    if (!SERVICE_CLASS_LOADING.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    ServiceClassLoadingEvent event = new ServiceClassLoadingEvent();
+    event.className = className;
+    return event.begin(module);
+  }
+
+  static EndpointsEvents.Span documentGeneration(String module, String api, String document) {
+    if (!DOCUMENT_GENERATION.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    DocumentGenerationEvent event = new DocumentGenerationEvent();
+    event.api = api;
+    event.document = document;
+    return event.begin(module);
+  }
+
+  static EndpointsEvents.Span documentGeneration(String module, ApiModel model, String document) {
+    if (!DOCUMENT_GENERATION.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    return documentGeneration(module, model.getApiNames(), document);
+  }
+
+  static EndpointsEvents.Span extraction(String module, String api, String archive) {
+    if (!EXTRACTION.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    ExtractionEvent event = new ExtractionEvent();
+    event.api = api;
+    event.archive = archive;
+    return event.begin(module);
+  }
+
+  static EndpointsEvents.Span fileWrite(String module, String api, String path) {
+    if (!FILE_WRITE.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    FileWriteEvent event = new FileWriteEvent();
+    event.api = api;
+    event.path = path;
+    return event.begin(module);
+  }
+
+  static EndpointsEvents.Span fileWrite(String module, ApiModel model, String path) {
+    if (!FILE_WRITE.isEnabled()) {
+      return EndpointsEvents.NOOP;
+    }
+    return fileWrite(module, model.getApiNames(), path);
+  }
+
+  /** An event timing a span of work of a module. */
+  @Category(CATEGORY)
+  abstract static class SpanEvent extends Event implements EndpointsEvents.Span {
+    @Label("Module")
+    String module;
+
+    EndpointsEvents.Span begin(String module) {
+      this.module = module;
+      begin();
+      return this;
+    }
+
+    @Override
+    public void setBytes(long bytes) {}
+
+    @Override
+    public void close() {
+      commit();
+    }
+  }
+
+  @Name(PREFIX + "Classpath")
+  @Label("Classpath Assembly")
+  static final class ClasspathEvent extends SpanEvent {}
+
+  @Name(PREFIX + "ServiceClassLoading")
+  @Label("Service Class Loading")
+  static final class ServiceClassLoadingEvent extends SpanEvent {
+    @Label("Class Name")
+    String className;
+  }
+
+  @Name(PREFIX + "DocumentGeneration")
+  @Label("Document Generation")
+  static final class DocumentGenerationEvent extends SpanEvent {
+    @Label("API")
+    String api;
+
+    @Label("Document")
+    String document;
+  }
+
+  @Name(PREFIX + "Extraction")
+  @Label("Archive Extraction")
+  static final class ExtractionEvent extends SpanEvent {
+    @Label("API")
+    String api;
+
+    @Label("Archive")
+    String archive;
+  }
+
+  @Name(PREFIX + "FileWrite")
+  @Label("File Write")
+  static final class FileWriteEvent extends SpanEvent {
+    @Label("API")
+    String api;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void setBytes(long bytes) {
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Loads a module's own classes without their static initializers, so introspecting the service
+ * classes does not start the Guice injectors, datastore clients and configuration loaders they set
+ * up. The {@code <clinit>} method is removed from each class file before it is defined, which
+ * leaves static fields at their defaults, constants excepted.
+ *
+ * <p>Enums keep their initializers, the API metadata may need their constants. The JVM runs them
+ * when an enum is first used, so an enum that is only loaded is never initialized. Classes of the
+ * dependencies are loaded by the parent and initialized as usual, once something initializes them.
+ * The initializers kept here and by the parent are timed, and those that run are reported.
+ */
+class NonInitializingClassLoader extends InitializerTimingClassLoader {
+
+  private static final int ACC_ENUM = 0x4000;
+  private static final String STATIC_INITIALIZER = "<clinit>";
+
+  static {
+    registerAsParallelCapable();
+  }
+
+  private final Log log;
+
+  NonInitializingClassLoader(URL[] urls, ClassLoader parent, Log log) {
+    super(urls, parent);
+    this.log = log;
+  }
+
+  @Override
+  byte[] transform(String name, byte[] classFile) {
+    ClassFile parsed = ClassFile.parse(classFile);
+    if (parsed == null || parsed.initializerStart < 0) {
+      return classFile;
+    }
+    if (parsed.isEnum) {
+      log.info("Kept static initializer of " + name + ", it runs if the enum's constants are used");
+      return super.transform(name, classFile);
+    }
+    byte[] stripped = parsed.withoutInitializer();
+    log.debug("Skipped static initializer of " + name);
+    return stripped;
+  }
+
+  /** Where the static initializer is in a class file. */
+  private static final class ClassFile {
+    private final byte[] bytes;
+    private final boolean isEnum;
+    private final int methodsCountOffset;
+    // the static initializer's method_info, start is -1 if there is none
+    private final int initializerStart;
+    private final int initializerEnd;
+
+    private ClassFile(
+        byte[] bytes,
+        boolean isEnum,
+        int methodsCountOffset,
+        int initializerStart,
+        int initializerEnd) {
+      this.bytes = bytes;
+      this.isEnum = isEnum;
+      this.methodsCountOffset = methodsCountOffset;
+      this.initializerStart = initializerStart;
+      this.initializerEnd = initializerEnd;
+    }
+
+    // null if the bytes are not a class file, the JVM reports that when it is defined
+    static ClassFile parse(byte[] bytes) {
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ConstantPool constantPool = ConstantPool.read(buffer);
+        boolean isEnum = (buffer.getShort() & ACC_ENUM) != 0;
+        ConstantPool.skip(buffer, 4); // this and super class
+        ConstantPool.skip(buffer, 2 * (buffer.getShort() & 0xFFFF)); // interfaces
+        int fieldsCount = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < fieldsCount; i++) {
+          ConstantPool.skip(buffer, 6); // access flags, name and descriptor
+          skipAttributes(buffer);
+        }
+        int methodsCountOffset = buffer.position();
+        int methodsCount = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < methodsCount; i++) {
+          int start = buffer.position();
+          ConstantPool.skip(buffer, 2); // access flags
+          String methodName = constantPool.getUtf8(buffer.getShort() & 0xFFFF);
+          ConstantPool.skip(buffer, 2); // descriptor
+          skipAttributes(buffer);
+          if (STATIC_INITIALIZER.equals(methodName)) {
+            return new ClassFile(bytes, isEnum, methodsCountOffset, start, buffer.position());
+          }
+        }
+        return new ClassFile(bytes, isEnum, methodsCountOffset, -1, -1);
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        return null;
+      }
+    }
+
+    // the method is removed, nothing refers to it, so the constant pool can stay as it is
+    byte[] withoutInitializer() {
+      int length = initializerEnd - initializerStart;
+      byte[] stripped = new byte[bytes.length - length];
+      System.arraycopy(bytes, 0, stripped, 0, initializerStart);
+      System.arraycopy(
+          bytes, initializerEnd, stripped, initializerStart, bytes.length - initializerEnd);
+      int methodsCount =
+          ((bytes[methodsCountOffset] & 0xFF) << 8 | (bytes[methodsCountOffset + 1] & 0xFF)) - 1;
+      stripped[methodsCountOffset] = (byte) (methodsCount >> 8);
+      stripped[methodsCountOffset + 1] = (byte) methodsCount;
+      return stripped;
+    }
+
+    private static void skipAttributes(ByteBuffer buffer) {
+      int attributesCount = buffer.getShort() & 0xFFFF;
+      for (int i = 0; i < attributesCount; i++) {
+        ConstantPool.skip(buffer, 2); // name
+        ConstantPool.skip(buffer, buffer.getInt());
+      }
+    }
+  }
+}
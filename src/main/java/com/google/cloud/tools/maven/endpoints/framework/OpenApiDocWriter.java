@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.api.server.spi.config.ApiConfigException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Writes the OpenAPI document of a model to {@code openapi.json} and, as configured, to {@code
+ * openapi.yaml} and gzip compressed copies next to them. Each format is streamed from the model in
+ * one pass together with its compressed copy. The goals writing OpenAPI documents share it, so they
+ * write the same files.
+ */
+class OpenApiDocWriter {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File openApiDocDir;
+  private final boolean gzip;
+  private final boolean yaml;
+  private final GoalMetrics metrics;
+  private final Log log;
+
+  OpenApiDocWriter(File openApiDocDir, boolean gzip, boolean yaml, GoalMetrics metrics, Log log) {
+    this.openApiDocDir = openApiDocDir;
+    this.gzip = gzip;
+    this.yaml = yaml;
+    this.metrics = metrics;
+    this.log = log;
+  }
+
+  /** Write every configured document of the model. */
+  void write(ApiModel apiModel) throws IOException, ApiConfigException {
+    writeFile(apiModel, getJsonFile(), false);
+    if (yaml) {
+      writeFile(apiModel, getYamlFile(), true);
+    }
+  }
+
+  /** The bytes write(ApiModel) writes for the model, keyed by their file. */
+  Map<File, byte[]> render(ApiModel apiModel) throws IOException, ApiConfigException {
+    Map<File, byte[]> rendered = new LinkedHashMap<>();
+    renderFile(apiModel, getJsonFile(), false, rendered);
+    if (yaml) {
+      renderFile(apiModel, getYamlFile(), true, rendered);
+    }
+    return rendered;
+  }
+
+  /** The files write(ApiModel) writes. */
+  List<File> getOutputFiles() {
+    List<File> outputs = new ArrayList<>();
+    outputs.add(getJsonFile());
+    if (yaml) {
+      outputs.add(getYamlFile());
+    }
+    if (gzip) {
+      for (File output : new ArrayList<>(outputs)) {
+        outputs.add(gzipFile(output));
+      }
+    }
+    return outputs;
+  }
+
+  private File getJsonFile() {
+    return new File(openApiDocDir, "openapi.json").getAbsoluteFile();
+  }
+
+  private File getYamlFile() {
+    return new File(openApiDocDir, "openapi.yaml").getAbsoluteFile();
+  }
+
+  private void writeFile(ApiModel apiModel, File file, boolean asYaml)
+      throws IOException, ApiConfigException {
+    try (EndpointsEvents.Span generation =
+            EndpointsEvents.documentGeneration(
+                metrics.getModule(), apiModel, asYaml ? "openApiYaml" : "openApi");
+        EndpointsEvents.Span write =
+            EndpointsEvents.fileWrite(metrics.getModule(), apiModel, file)) {
+      try (OutputStream fileOut = new FileOutputStream(file);
+          OutputStream gzipFileOut = gzip ? new FileOutputStream(gzipFile(file)) : null) {
+        writeStreams(apiModel, fileOut, gzipFileOut, asYaml);
+      }
+      write.setBytes(file.length() + (gzip ? gzipFile(file).length() : 0));
+    }
+    log.info("OpenAPI document written to " + file.getAbsolutePath());
+  }
+
+  private void renderFile(ApiModel apiModel, File file, boolean asYaml, Map<File, byte[]> rendered)
+      throws IOException, ApiConfigException {
+    ByteArrayOutputStream doc = new ByteArrayOutputStream();
+    ByteArrayOutputStream compressed = gzip ? new ByteArrayOutputStream() : null;
+    writeStreams(apiModel, doc, compressed, asYaml);
+    rendered.put(file, doc.toByteArray());
+    if (compressed != null) {
+      rendered.put(gzipFile(file), compressed.toByteArray());
+    }
+  }
+
+  // write a document and, unless gzipOut is null, its compressed copy in one pass
+  private static void writeStreams(
+      ApiModel apiModel, OutputStream docOut, OutputStream gzipOut, boolean asYaml)
+      throws IOException, ApiConfigException {
+    try (OutputStream compressed =
+            gzipOut == null ? null : new GZIPOutputStream(gzipOut, BUFFER_SIZE);
+        OutputStream out =
+            new BufferedOutputStream(
+                compressed == null ? docOut : new TeeOutputStream(docOut, compressed),
+                BUFFER_SIZE)) {
+      apiModel.writeOpenApiDoc(out, asYaml);
+    }
+  }
+
+  private static File gzipFile(File file) {
+    return new File(file.getPath() + ".gz");
+  }
+
+  /** Writes everything to two streams. */
+  private static final class TeeOutputStream extends OutputStream {
+    private final OutputStream first;
+    private final OutputStream second;
+
+    private TeeOutputStream(OutputStream first, OutputStream second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      first.write(b);
+      second.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      first.write(b, off, len);
+      second.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      first.flush();
+      second.flush();
+    }
+
+    // the streams are closed by their owner
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -17,31 +17,26 @@
 
 package com.google.cloud.tools.maven.endpoints.framework;
 
-import com.google.api.server.spi.tools.EndpointsTool;
-import com.google.api.server.spi.tools.GetOpenApiDocAction;
-import com.google.common.base.Joiner;
-import com.google.common.base.Strings;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
-import org.apache.maven.project.MavenProject;
 
 /** Goal which generates openapi docs. */
 @Mojo(
   name = "openApiDocs",
   requiresDependencyResolution = ResolutionScope.COMPILE,
-  defaultPhase = LifecyclePhase.PREPARE_PACKAGE
+  defaultPhase = LifecyclePhase.PREPARE_PACKAGE,
+  threadSafe = true
 )
 public class OpenApiDocsMojo extends AbstractEndpointsWebAppMojo {
 
-  @Parameter(defaultValue = "${project}", readonly = true)
-  private MavenProject project;
+  private static final String API_DEPENDENCIES_PATH = "endpoints-framework/openApiDocs.apis";
 
   /** Output directory for openapi docs. */
   @Parameter(
@@ -59,47 +54,123 @@ public class OpenApiDocsMojo extends AbstractEndpointsWebAppMojo {
   @Parameter(property = "endpoints.basePath", required = false)
   private String basePath;
 
+  /** Also write a gzip compressed copy of every document, next to it with a .gz suffix. */
+  @Parameter(defaultValue = "false", property = "endpoints.openApiDocGzip")
+  private boolean gzip;
+
+  /** Also write the document as YAML, to openapi.yaml. */
+  @Parameter(defaultValue = "false", property = "endpoints.openApiDocYaml")
+  private boolean yaml;
+
+  /** Skip generation when the inputs and outputs are unchanged since the last build. */
+  @Parameter(defaultValue = "true", property = "endpoints.incremental")
+  private boolean incremental;
+
+  /**
+   * Generate the OpenAPI documents a second time from an independent introspection of the service
+   * classes and fail the build if the bytes differ, to check that builds are reproducible.
+   */
+  @Parameter(defaultValue = "false", property = "endpoints.verifyReproducible")
+  private boolean verifyReproducible;
+
   @Override
-  public void execute() throws MojoExecutionException {
+  public void execute() throws MojoExecutionException, MojoFailureException {
+    metrics = new GoalMetrics("openApiDocs", project.getArtifactId());
     try {
-      if (!openApiDocDir.exists() && !openApiDocDir.mkdirs()) {
+      if (!openApiDocDir.mkdirs() && !openApiDocDir.isDirectory()) {
         throw new MojoExecutionException(
             "Failed to create output directory: " + openApiDocDir.getAbsolutePath());
       }
-      String classpath = Joiner.on(File.pathSeparator).join(project.getRuntimeClasspathElements());
-      classpath += File.pathSeparator + classesDir;
-
-      List<String> params =
-          new ArrayList<>(
-              Arrays.asList(
-                  GetOpenApiDocAction.NAME,
-                  "-o",
-                  computeOpenApiDocPath(),
-                  "-cp",
-                  classpath,
-                  "-w",
-                  webappDir.getAbsolutePath()));
-      if (!Strings.isNullOrEmpty(hostname)) {
-        params.add("-h");
-        params.add(hostname);
+      UpToDateState upToDateState = null;
+      ApiDependencies apiDependencies = null;
+      // verification needs the outputs generated, skipping them would leave nothing to compare
+      if (incremental && !verifyReproducible) {
+        try (GoalMetrics.Phase phase = metrics.start("upToDateCheck")) {
+          upToDateState =
+              loadUpToDateState("openApiDocs")
+                  .putParameter("openApiDocDir", openApiDocDir.getAbsolutePath())
+                  .putParameter("hostname", hostname)
+                  .putParameter("basePath", basePath)
+                  .putParameter("gzip", gzip)
+                  .putParameter("yaml", yaml);
+          if (upToDateState.isUpToDate()) {
+            getLog().info("OpenAPI document is up to date");
+            return;
+          }
+          if (upToDateState.areOutputsIntact()) {
+            apiDependencies =
+                ApiDependencies.load(
+                    new File(project.getBuild().getDirectory(), API_DEPENDENCIES_PATH),
+                    classesDir,
+                    upToDateState.getSharedFingerprint());
+          }
+        }
       }
-      if (!Strings.isNullOrEmpty(basePath)) {
-        params.add("-p");
-        params.add(basePath);
+
+      // the document covers every API, it is written again unless no API depends on the changes
+      ApiModel.Key key = getApiModelKey(hostname, basePath);
+      if (apiDependencies != null) {
+        List<String> serviceClassNames = key.getServiceClassNames(getLog());
+        boolean changed;
+        try (GoalMetrics.Phase phase = metrics.start("dependencyCheck")) {
+          changed =
+              !apiDependencies
+                  .getServiceClassesToLoad(
+                      serviceClassNames, apiDependencies.getChangedApis(serviceClassNames))
+                  .isEmpty();
+        }
+        if (!changed) {
+          getLog().info("OpenAPI document is up to date, no API depends on the changed classes");
+          upToDateState.save(getWriter().getOutputFiles());
+          return;
+        }
       }
-      if (serviceClasses != null) {
-        params.addAll(serviceClasses);
+
+      ApiModel apiModel = getApiModel(key);
+      // the model is serialized straight into the files, once per format
+      try (GoalMetrics.Phase phase = metrics.start("write")) {
+        getWriter().write(apiModel);
+
+        if (upToDateState != null) {
+          apiDependencies =
+              ApiDependencies.load(
+                  new File(project.getBuild().getDirectory(), API_DEPENDENCIES_PATH),
+                  classesDir,
+                  upToDateState.getSharedFingerprint());
+          Map<String, List<String>> serviceClassesByApi = apiModel.getServiceClassesByApi();
+          for (String api : apiDependencies.getApis()) {
+            if (!serviceClassesByApi.containsKey(api)) {
+              apiDependencies.remove(api);
+            }
+          }
+          for (Map.Entry<String, List<String>> api : serviceClassesByApi.entrySet()) {
+            apiDependencies.record(api.getKey(), api.getValue());
+          }
+          apiDependencies.save();
+          upToDateState.save(getWriter().getOutputFiles());
+        }
       }
 
-      getLog().info("Endpoints Tool params : " + params.toString());
-      new EndpointsTool().execute(params.toArray(new String[params.size()]));
+      if (verifyReproducible) {
+        verifyOpenApiDocs(key);
+      }
 
+    } catch (MojoExecutionException | MojoFailureException e) {
+      throw e;
     } catch (Exception e) {
       throw new MojoExecutionException("Endpoints Tool Error", e);
+    } finally {
+      reportMetrics();
+    }
+  }
+
+  private void verifyOpenApiDocs(ApiModel.Key key) throws Exception {
+    try (ApiModel apiModel = loadIndependentApiModel(key)) {
+      verifyReproducible(getWriter().render(apiModel));
     }
   }
 
-  private String computeOpenApiDocPath() {
-    return new File(openApiDocDir, "openapi.json").getAbsolutePath();
+  private OpenApiDocWriter getWriter() {
+    return new OpenApiDocWriter(openApiDocDir, gzip, yaml, metrics, getLog());
   }
 }
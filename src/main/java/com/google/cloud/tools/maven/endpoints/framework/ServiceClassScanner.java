@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the service classes of a module by reading the class files in its classes directory. Only
+ * the constant pool and the class level annotations are parsed, no class is loaded, so static
+ * initializers and missing dependencies do not matter.
+ *
+ * <p>A service class is a concrete class annotated with {@code @Api} or {@code @ApiClass}. The
+ * result for each class file is cached by its size and modification time, so later scans only parse
+ * the files that changed.
+ */
+final class ServiceClassScanner {
+
+  private static final String API_DESCRIPTOR = "Lcom/google/api/server/spi/config/Api;";
+  private static final String API_CLASS_DESCRIPTOR = "Lcom/google/api/server/spi/config/ApiClass;";
+  private static final String ANNOTATIONS_ATTRIBUTE = "RuntimeVisibleAnnotations";
+
+  private static final int ACC_INTERFACE = 0x0200;
+  private static final int ACC_ABSTRACT = 0x0400;
+
+  // cached result of a class file that is not a service class
+  private static final String NOT_A_SERVICE = "";
+
+  private ServiceClassScanner() {}
+
+  /**
+   * Scan a classes directory for service classes.
+   *
+   * @param classesDir the compiled classes of a module
+   * @param cacheFile results of the previous scan, rewritten with the results of this scan
+   * @return the names of the service classes, sorted
+   */
+  static List<String> scan(File classesDir, File cacheFile) throws IOException {
+    Properties previous = new Properties();
+    if (cacheFile.isFile()) {
+      try (InputStream in = new FileInputStream(cacheFile)) {
+        previous.load(in);
+      } catch (IllegalArgumentException e) {
+        previous.clear();
+      }
+    }
+
+    List<File> classFiles = new ArrayList<>();
+    for (File file : Files.fileTraverser().depthFirstPreOrder(classesDir)) {
+      if (file.getName().endsWith(".class") && file.isFile()) {
+        classFiles.add(file);
+      }
+    }
+
+    Properties current = new Properties();
+    List<String> serviceClasses;
+    try {
+      serviceClasses =
+          classFiles
+              .parallelStream()
+              .map(file -> scanCached(classesDir, file, previous, current))
+              .filter(serviceClass -> !serviceClass.isEmpty())
+              .sorted()
+              .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    Files.createParentDirs(cacheFile);
+    try (OutputStream out = new FileOutputStream(cacheFile)) {
+      current.store(out, null);
+    }
+    return Collections.unmodifiableList(serviceClasses);
+  }
+
+  private static String scanCached(
+      File classesDir, File classFile, Properties previous, Properties current) {
+    String key = classesDir.toPath().relativize(classFile.toPath()).toString();
+    String stamp = classFile.length() + ":" + classFile.lastModified() + ":";
+    String recorded = previous.getProperty(key);
+    String serviceClass;
+    if (recorded != null && recorded.startsWith(stamp)) {
+      serviceClass = recorded.substring(stamp.length());
+    } else {
+      try {
+        serviceClass = getServiceClassName(Files.toByteArray(classFile));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new UncheckedIOException(
+            new IOException("Malformed class file " + classFile.getAbsolutePath(), e));
+      }
+    }
+    // Properties is synchronized, safe to fill from the parallel stream
+    current.setProperty(key, stamp + serviceClass);
+    return serviceClass;
+  }
+
+  /**
+   * Parse a class file.
+   *
+   * @return the binary name of the class if it is a service class, else an empty string
+   */
+  private static String getServiceClassName(byte[] classFile) {
+    ByteBuffer buffer = ByteBuffer.wrap(classFile);
+    ConstantPool constantPool = ConstantPool.read(buffer);
+    // the annotation descriptors have to be in the constant pool, most classes stop here
+    if (!constantPool.containsUtf8(API_DESCRIPTOR)
+        && !constantPool.containsUtf8(API_CLASS_DESCRIPTOR)) {
+      return NOT_A_SERVICE;
+    }
+
+    int accessFlags = buffer.getShort() & 0xFFFF;
+    String className = constantPool.getClassName(buffer.getShort() & 0xFFFF);
+    if ((accessFlags & (ACC_INTERFACE | ACC_ABSTRACT)) != 0) {
+      return NOT_A_SERVICE;
+    }
+    ConstantPool.skip(buffer, 2); // super class
+    ConstantPool.skip(buffer, 2 * (buffer.getShort() & 0xFFFF)); // interfaces
+    skipMembers(buffer); // fields
+    skipMembers(buffer); // methods
+
+    int attributesCount = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < attributesCount; i++) {
+      String name = constantPool.getUtf8(buffer.getShort() & 0xFFFF);
+      int length = buffer.getInt();
+      if (!ANNOTATIONS_ATTRIBUTE.equals(name)) {
+        ConstantPool.skip(buffer, length);
+        continue;
+      }
+      int annotationsCount = buffer.getShort() & 0xFFFF;
+      for (int j = 0; j < annotationsCount; j++) {
+        if (isApiAnnotation(constantPool.getUtf8(buffer.getShort() & 0xFFFF))) {
+          return className.replace('/', '.');
+        }
+        skipElementValuePairs(buffer);
+      }
+    }
+    return NOT_A_SERVICE;
+  }
+
+  private static boolean isApiAnnotation(String descriptor) {
+    return API_DESCRIPTOR.equals(descriptor) || API_CLASS_DESCRIPTOR.equals(descriptor);
+  }
+
+  private static void skipMembers(ByteBuffer buffer) {
+    int count = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < count; i++) {
+      ConstantPool.skip(buffer, 6); // access flags, name and descriptor
+      int attributesCount = buffer.getShort() & 0xFFFF;
+      for (int j = 0; j < attributesCount; j++) {
+        ConstantPool.skip(buffer, 2);
+        ConstantPool.skip(buffer, buffer.getInt());
+      }
+    }
+  }
+
+  private static void skipElementValuePairs(ByteBuffer buffer) {
+    int count = buffer.getShort() & 0xFFFF;
+    for (int i = 0; i < count; i++) {
+      ConstantPool.skip(buffer, 2); // element name
+      skipElementValue(buffer);
+    }
+  }
+
+  private static void skipElementValue(ByteBuffer buffer) {
+    int tag = buffer.get();
+    switch (tag) {
+      case 'e': // enum constant
+        ConstantPool.skip(buffer, 4);
+        break;
+      case '@': // nested annotation
+        ConstantPool.skip(buffer, 2);
+        skipElementValuePairs(buffer);
+        break;
+      case '[':
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+          skipElementValue(buffer);
+        }
+        break;
+      default: // constants and classes
+        ConstantPool.skip(buffer, 2);
+        break;
+    }
+  }
+}
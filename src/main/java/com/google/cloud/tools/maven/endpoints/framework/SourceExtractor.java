@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Extracts the {@code <api-name>/src/main/java} directory of generated client library archives into
+ * the directory of a source manifest. The archive is decompressed by one sequential reader, while
+ * its files are compared and written concurrently on a bounded pool, so slow file systems see many
+ * writes in flight instead of one at a time. The directory tree of an archive is created before its
+ * files are written.
+ *
+ * <p>This is very dependent on the endpoints archive following a convention: the first entry is the
+ * root directory and the sources are below its {@code src/main/java}.
+ */
+final class SourceExtractor implements AutoCloseable {
+
+  // files up to this size are read straight into an array of their size on the fast path
+  private static final int SMALL_FILE_BYTES = 64 * 1024;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  // writes waiting per worker before the reader writes itself, bounding the content held
+  private static final int QUEUED_WRITES_PER_THREAD = 4;
+
+  private final GeneratedSourceManifest manifest;
+  private final boolean smallFileFastPath;
+  private final String module;
+  private final ThreadPoolExecutor executor;
+  private final Map<String, ExtractedFile> extractedFiles = new HashMap<>();
+
+  /**
+   * Create an extractor writing into the manifest's directory.
+   *
+   * @param threads the number of files written concurrently
+   * @param smallFileFastPath read small files without an intermediate buffer
+   * @param module the module the sources are generated for, carried by flight recorder events
+   */
+  SourceExtractor(
+      GeneratedSourceManifest manifest, int threads, boolean smallFileFastPath, String module) {
+    this.manifest = manifest;
+    this.smallFileFastPath = smallFileFastPath;
+    this.module = module;
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUED_WRITES_PER_THREAD),
+            new ThreadFactoryBuilder()
+                .setNameFormat("endpoints-extraction-%d")
+                .setDaemon(true)
+                .build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Extract the sources of an archive. Two discovery docs may generate the same file, but only with
+   * the same content.
+   */
+  void extract(File archive, File discoveryDoc) throws IOException, MojoExecutionException {
+    try (EndpointsEvents.Span span =
+        EndpointsEvents.extraction(module, discoveryDoc.getName(), archive)) {
+      extractSources(archive, discoveryDoc);
+    }
+  }
+
+  private void extractSources(File archive, File discoveryDoc)
+      throws IOException, MojoExecutionException {
+    // the central directory gives the sources and their sizes before any content is read
+    String srcMainRoot;
+    Map<String, Long> sizes = new HashMap<>();
+    TreeSet<File> dirs = new TreeSet<>();
+    try (ZipFile zip = new ZipFile(archive)) {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      if (!entries.hasMoreElements()) {
+        return;
+      }
+      srcMainRoot = entries.nextElement().getName() + "src/main/java/";
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (!entry.isDirectory() && entry.getName().startsWith(srcMainRoot)) {
+          sizes.put(entry.getName(), entry.getSize());
+          dirs.add(
+              manifest.resolve(entry.getName().substring(srcMainRoot.length())).getParentFile());
+        }
+      }
+    }
+    for (File dir : dirs) {
+      Files.createDirectories(dir.toPath());
+    }
+
+    List<Future<?>> writes = new ArrayList<>();
+    try (ZipInputStream zipIn =
+        new ZipInputStream(new BufferedInputStream(new FileInputStream(archive), BUFFER_BYTES))) {
+      ZipEntry zipEntry;
+      while ((zipEntry = zipIn.getNextEntry()) != null) {
+        if (zipEntry.isDirectory() || !zipEntry.getName().startsWith(srcMainRoot)) {
+          continue;
+        }
+        final String relativePath = zipEntry.getName().substring(srcMainRoot.length());
+        final byte[] content = read(zipIn, sizes.get(zipEntry.getName()));
+        final HashCode hash = Hashing.sha256().hashBytes(content);
+
+        ExtractedFile previous = extractedFiles.get(relativePath);
+        if (previous != null) {
+          if (!previous.hash.equals(hash)) {
+            throw new MojoExecutionException(
+                "Conflicting generated source "
+                    + relativePath
+                    + " from discovery docs "
+                    + previous.discoveryDoc
+                    + " and "
+                    + discoveryDoc);
+          }
+          continue;
+        }
+        extractedFiles.put(relativePath, new ExtractedFile(discoveryDoc, hash));
+        writes.add(
+            executor.submit(
+                () -> {
+                  File file = manifest.resolve(relativePath);
+                  try (EndpointsEvents.Span span =
+                      EndpointsEvents.fileWrite(module, discoveryDoc.getName(), file)) {
+                    if (manifest.put(relativePath, content, hash)) {
+                      span.setBytes(content.length);
+                    }
+                  }
+                  return null;
+                }));
+      }
+    } catch (IOException | MojoExecutionException | RuntimeException e) {
+      // leave no write running behind the failure, but report the failure itself
+      try {
+        await(writes);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+    await(writes);
+  }
+
+  private byte[] read(InputStream in, Long size) throws IOException {
+    if (smallFileFastPath && size != null && size >= 0 && size <= SMALL_FILE_BYTES) {
+      byte[] content = new byte[size.intValue()];
+      ByteStreams.readFully(in, content);
+      return content;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_BYTES);
+    ByteStreams.copy(in, out);
+    return out.toByteArray();
+  }
+
+  // wait for every write, failing with the first error once none is running any more
+  private static void await(List<Future<?>> writes) throws IOException {
+    IOException failure = null;
+    for (Future<?> write : writes) {
+      try {
+        write.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure =
+              e.getCause() instanceof IOException
+                  ? (IOException) e.getCause()
+                  : new IOException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while writing generated sources", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /** A source file taken from a generated archive and the discovery doc it came from. */
+  private static final class ExtractedFile {
+    private final File discoveryDoc;
+    private final HashCode hash;
+
+    private ExtractedFile(File discoveryDoc, HashCode hash) {
+      this.discoveryDoc = discoveryDoc;
+      this.hash = hash;
+    }
+  }
+}
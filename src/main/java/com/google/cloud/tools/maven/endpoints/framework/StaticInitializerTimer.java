@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Times the static initializers that are kept when classes are loaded without them. The class
+ * loaders call {@link #enter} at the start of each kept {@code <clinit>} and {@link #exit} before
+ * it returns, see InitializerInstrumenter, and the time is recorded with the class loader that
+ * defined the class, so each goal reports the initializers of the models it used.
+ *
+ * <p>Public only so the instrumented classes, defined by other class loaders in other packages, can
+ * call it.
+ */
+public final class StaticInitializerTimer {
+
+  private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  // the initializers running on each thread, one triggers the next by using its class
+  private static final ThreadLocal<Deque<Frame>> running = ThreadLocal.withInitial(ArrayDeque::new);
+
+  private StaticInitializerTimer() {}
+
+  /** Called by an instrumented class when its static initializer starts. */
+  public static void enter(Class<?> initialized) {
+    running.get().push(new Frame(initialized, System.nanoTime()));
+  }
+
+  /** Called by an instrumented class when its static initializer returns. */
+  public static void exit(Class<?> initialized) {
+    long now = System.nanoTime();
+    Deque<Frame> frames = running.get();
+    // frames above the class belong to initializers that threw, they are not reported
+    Frame frame;
+    do {
+      frame = frames.poll();
+    } while (frame != null && frame.initialized != initialized);
+    if (frame == null) {
+      return;
+    }
+    long total = now - frame.start;
+    if (!frames.isEmpty()) {
+      frames.peek().nested += total;
+    }
+    ClassLoader loader = initialized.getClassLoader();
+    if (loader instanceof InitializerTimingClassLoader) {
+      ((InitializerTimingClassLoader) loader)
+          .getInitializers()
+          .ran(initialized.getName(), total - frame.nested);
+    }
+  }
+
+  /**
+   * Report the kept initializers that ran since the last report, with the time each took, in a
+   * single warning. If none ran only their number is logged.
+   *
+   * @param initializers those of the class loaders a goal used
+   */
+  static void report(Collection<Initializers> initializers, Log log) {
+    int kept = 0;
+    int reported = 0;
+    List<Map.Entry<String, Long>> ran = new ArrayList<>();
+    for (Initializers loaderInitializers : initializers) {
+      synchronized (loaderInitializers) {
+        kept += loaderInitializers.kept.size();
+        reported += loaderInitializers.reported.size();
+        for (Map.Entry<String, Long> initializer : loaderInitializers.nanos.entrySet()) {
+          if (loaderInitializers.reported.add(initializer.getKey())) {
+            ran.add(initializer);
+          }
+        }
+      }
+    }
+    if (ran.isEmpty()) {
+      log.info(
+          reported == 0
+              ? "None of the " + kept + " kept static initializers ran"
+              : "No other of the " + kept + " kept static initializers ran");
+      return;
+    }
+    Collections.sort(ran, (a, b) -> Long.compare(b.getValue(), a.getValue()));
+    StringBuilder message =
+        new StringBuilder()
+            .append(ran.size())
+            .append(" of ")
+            .append(kept)
+            .append(reported == 0 ? "" : " other")
+            .append(" kept static initializers ran:");
+    for (Map.Entry<String, Long> initializer : ran) {
+      message
+          .append("\n  ")
+          .append(initializer.getKey())
+          .append(" ")
+          .append(
+              String.format(Locale.ROOT, "%.1f", initializer.getValue() / (double) NANOS_PER_MILLI))
+          .append(" ms");
+    }
+    log.warn(message);
+  }
+
+  /** The static initializers kept by a class loader and the time those that ran took. */
+  static final class Initializers {
+    private final Set<String> kept = new LinkedHashSet<>();
+    // the time each initializer took, without the initializers it triggered
+    private final Map<String, Long> nanos = new LinkedHashMap<>();
+    private final Set<String> reported = new HashSet<>();
+
+    /** Record that a class was defined with its static initializer. */
+    synchronized void kept(String className) {
+      kept.add(className);
+    }
+
+    private synchronized void ran(String className, long selfNanos) {
+      nanos.put(className, selfNanos);
+    }
+  }
+
+  private static final class Frame {
+    private final Class<?> initialized;
+    private final long start;
+    private long nested;
+
+    private Frame(Class<?> initialized, long start) {
+      this.initialized = initialized;
+      this.start = start;
+    }
+  }
+}
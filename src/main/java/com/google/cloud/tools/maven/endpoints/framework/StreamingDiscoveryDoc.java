@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.MultipartContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.server.spi.tools.GenClientLibAction;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A discovery doc that is validated and sent to the client library generator as a stream, so its
+ * size does not bound the heap. The endpoints tool reads a doc into a string, parses it into a tree
+ * twice and copies it twice more into the request; this reads it once, token by token, and the
+ * request copies it straight from the file.
+ */
+final class StreamingDiscoveryDoc {
+
+  // the read timeout of the endpoints tool's CloudClientLibGenerator
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // the generator service the endpoints tool sends its requests to, see getGeneratorUrl()
+  private static String generatorUrl;
+
+  private final File file;
+  private final String name;
+  private final String version;
+  private final int schemas;
+
+  private StreamingDiscoveryDoc(File file, String name, String version, int schemas) {
+    this.file = file;
+    this.name = name;
+    this.version = version;
+    this.schemas = schemas;
+  }
+
+  /**
+   * Check that a file is a well formed discovery doc in rest format and read its name, version and
+   * number of schemas, keeping no more than one token in memory.
+   *
+   * @throws IOException if the file cannot be read or is not a rest discovery doc
+   */
+  static StreamingDiscoveryDoc read(File file) throws IOException {
+    String name = null;
+    String version = null;
+    String protocol = null;
+    int schemas = 0;
+    try (JsonParser parser = JSON_FACTORY.createParser(file)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Discovery doc " + file + " is not a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.VALUE_STRING && "name".equals(field)) {
+          name = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "version".equals(field)) {
+          version = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "protocol".equals(field)) {
+          protocol = parser.getText();
+        } else if (value == JsonToken.START_OBJECT && "schemas".equals(field)) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+            schemas++;
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+      // the rest of the file must be empty, like for a tree parse
+      if (parser.nextToken() != null) {
+        throw new IOException("Discovery doc " + file + " has content after its JSON object");
+      }
+    } catch (JsonProcessingException e) {
+      throw new IOException("Discovery doc " + file + " is not valid JSON", e);
+    }
+    if (!"rest".equals(protocol)) {
+      throw new IOException("Discovery doc " + file + " must be in rest format");
+    }
+    if (name == null || version == null) {
+      throw new IOException("Discovery doc " + file + " has no name or version");
+    }
+    return new StreamingDiscoveryDoc(file, name, version, schemas);
+  }
+
+  // the name and version of the API, <name>-<version>
+  String getApi() {
+    return name + "-" + version;
+  }
+
+  int getSchemaCount() {
+    return schemas;
+  }
+
+  /**
+   * Generate the client library of the doc into {@code
+   * <outputDir>/<name>-<version>-<language>.zip}, the archive the endpoints tool would write.
+   *
+   * @return the client library archive
+   */
+  File generateClientLib(String language, String buildSystem, File outputDir) throws IOException {
+    // the form of CloudClientLibGenerator, with the doc streamed from its file
+    MultipartContent form = new MultipartContent();
+    form.setMediaType(
+            new HttpMediaType("multipart/form-data").setParameter("boundary", form.getBoundary()))
+        .addPart(
+            formField("lang", ByteArrayContent.fromString(null, language.toLowerCase(Locale.ROOT))))
+        .addPart(formField("content", new FileContent(null, file)))
+        .addPart(formField("layout", ByteArrayContent.fromString(null, buildSystem)));
+    HttpRequest request =
+        new NetHttpTransport()
+            .createRequestFactory()
+            .buildPostRequest(new GenericUrl(getGeneratorUrl()), form)
+            .setReadTimeout(READ_TIMEOUT_MILLIS);
+    HttpResponse response = request.execute();
+    try {
+      if (response.getStatusCode() >= 300) {
+        throw new IOException(
+            "Client Generation failed at server side: " + response.parseAsString());
+      }
+      File clientLib =
+          new File(outputDir, getApi() + "-" + language.toLowerCase(Locale.ROOT) + ".zip");
+      try (InputStream in = response.getContent()) {
+        Files.asByteSink(clientLib).writeFrom(in);
+      }
+      return clientLib;
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private static MultipartContent.Part formField(String name, HttpContent value) {
+    HttpHeaders headers =
+        new HttpHeaders()
+            .setAcceptEncoding(null)
+            .set("Content-Disposition", "form-data; name=\"" + name + "\"");
+    return new MultipartContent.Part(headers, value);
+  }
+
+  /**
+   * The generator service the endpoints tool sends its requests to. GenClientLibAction holds it as
+   * a constant, so it is read from that class file and follows the tool's version.
+   */
+  private static synchronized String getGeneratorUrl() throws IOException {
+    if (generatorUrl == null) {
+      try (InputStream in =
+          GenClientLibAction.class.getResourceAsStream("GenClientLibAction.class")) {
+        if (in != null) {
+          generatorUrl =
+              ConstantPool.read(ByteBuffer.wrap(ByteStreams.toByteArray(in)))
+                  .findUtf8("https://", "/generate");
+        }
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new IOException("Cannot read the endpoints tool's GenClientLibAction", e);
+      }
+      if (generatorUrl == null) {
+        throw new IOException(
+            "GenClientLibAction of the endpoints tool names no client library generator");
+      }
+    }
+    return generatorUrl;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records a content fingerprint of a goal's inputs and the checksums of the files it wrote, so a
+ * later build with the same inputs can skip generation while the outputs are still intact.
+ *
+ * <p>The state is a properties file: {@code fingerprint} holds the input hash, {@code output.*}
+ * entries hold output checksums and {@code jar.*} entries remember the checksum of each classpath
+ * jar by size and modification time, so unchanged jars are not read again.
+ */
+class UpToDateState {
+
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String SHARED_FINGERPRINT = "sharedFingerprint";
+  private static final String OUTPUT_PREFIX = "output.";
+  private static final String JAR_PREFIX = "jar.";
+
+  private final File stateFile;
+  private final Properties previous;
+  private final Properties current = new Properties();
+  private final Hasher inputs = Hashing.sha256().newHasher();
+  // every input except the module's compiled classes
+  private final Hasher sharedInputs = Hashing.sha256().newHasher();
+  private boolean hashingClasses;
+
+  private UpToDateState(File stateFile, Properties previous) {
+    this.stateFile = stateFile;
+    this.previous = previous;
+  }
+
+  /** Read the state left by the last run, a missing or unreadable file is treated as empty. */
+  static UpToDateState load(File stateFile) {
+    Properties previous = new Properties();
+    if (stateFile.isFile()) {
+      try (InputStream in = new FileInputStream(stateFile)) {
+        previous.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        previous.clear();
+      }
+    }
+    return new UpToDateState(stateFile, previous);
+  }
+
+  /** Add a goal parameter to the fingerprint. */
+  UpToDateState putParameter(String name, Object value) {
+    putString(name);
+    putString(String.valueOf(value));
+    return this;
+  }
+
+  /** Add the content of a file, or of every file below a directory, to the fingerprint. */
+  UpToDateState putFiles(File root) throws IOException {
+    putString(root.getAbsolutePath());
+    for (File file : listFiles(root)) {
+      putString(file.getPath());
+      putBytes(hash(file).asBytes());
+    }
+    return this;
+  }
+
+  /**
+   * Add the module's compiled classes to the fingerprint. Unlike the other inputs they are left out
+   * of the shared fingerprint, which goals use to tell which classes changed on their own.
+   */
+  UpToDateState putClasses(File classesDir) throws IOException {
+    hashingClasses = true;
+    try {
+      return putFiles(classesDir);
+    } finally {
+      hashingClasses = false;
+    }
+  }
+
+  /**
+   * Add the classpath elements to the fingerprint. A jar's checksum is only recomputed when its
+   * size or modification time differs from the last run.
+   */
+  UpToDateState putClasspath(List<String> classpath) throws IOException {
+    for (String element : classpath) {
+      File file = new File(element);
+      if (!file.isFile()) {
+        putFiles(file);
+        continue;
+      }
+      String stamp = file.length() + ":" + file.lastModified() + ":";
+      String key = JAR_PREFIX + file.getAbsolutePath();
+      String recorded = previous.getProperty(key);
+      String checksum;
+      if (recorded != null && recorded.startsWith(stamp)) {
+        checksum = recorded.substring(stamp.length());
+      } else {
+        checksum = hash(file).toString();
+      }
+      current.setProperty(key, stamp + checksum);
+      putString(file.getAbsolutePath());
+      putString(checksum);
+    }
+    return this;
+  }
+
+  /**
+   * Whether the inputs match the last successful run and every output it recorded still has the
+   * checksum it was written with.
+   */
+  boolean isUpToDate() throws IOException {
+    return getFingerprint().equals(previous.getProperty(FINGERPRINT)) && areOutputsIntact();
+  }
+
+  /** Whether every output of the last successful run still has the checksum it was written with. */
+  boolean areOutputsIntact() throws IOException {
+    boolean hasOutputs = false;
+    for (String name : previous.stringPropertyNames()) {
+      if (name.startsWith(OUTPUT_PREFIX)) {
+        hasOutputs = true;
+        File output = new File(name.substring(OUTPUT_PREFIX.length()));
+        if (!output.isFile() || !hash(output).toString().equals(previous.getProperty(name))) {
+          return false;
+        }
+      }
+    }
+    return hasOutputs;
+  }
+
+  /** The fingerprint of every input except the compiled classes added by putClasses. */
+  String getSharedFingerprint() {
+    // read once, like the full fingerprint
+    String fingerprint = current.getProperty(SHARED_FINGERPRINT);
+    if (fingerprint == null) {
+      fingerprint = sharedInputs.hash().toString();
+      current.setProperty(SHARED_FINGERPRINT, fingerprint);
+    }
+    return fingerprint;
+  }
+
+  /** Record the current fingerprint together with the outputs that were just written. */
+  void save(Collection<File> outputs) throws IOException {
+    current.setProperty(FINGERPRINT, getFingerprint());
+    for (File output : outputs) {
+      current.setProperty(OUTPUT_PREFIX + output.getAbsolutePath(), hash(output).toString());
+    }
+    Files.createParentDirs(stateFile);
+    try (OutputStream out = new FileOutputStream(stateFile)) {
+      current.store(out, null);
+    }
+  }
+
+  private String getFingerprint() {
+    // the hasher can only be read once, so cache the result in the current state
+    String fingerprint = current.getProperty(FINGERPRINT);
+    if (fingerprint == null) {
+      fingerprint = inputs.hash().toString();
+      current.setProperty(FINGERPRINT, fingerprint);
+    }
+    return fingerprint;
+  }
+
+  private void putString(String value) {
+    inputs.putString(value, StandardCharsets.UTF_8).putByte((byte) 0);
+    if (!hashingClasses) {
+      sharedInputs.putString(value, StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+  }
+
+  private void putBytes(byte[] value) {
+    inputs.putBytes(value);
+    if (!hashingClasses) {
+      sharedInputs.putBytes(value);
+    }
+  }
+
+  private static HashCode hash(File file) throws IOException {
+    return Files.asByteSource(file).hash(Hashing.sha256());
+  }
+
+  private static List<File> listFiles(File root) {
+    List<File> files = new ArrayList<>();
+    for (File file : Files.fileTraverser().depthFirstPreOrder(root)) {
+      if (file.isFile()) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Goal which regenerates the discovery docs and the openapi doc whenever the compiled classes or
+ * the WEB-INF configuration change, until it is stopped. The dependency jars stay loaded between
+ * regenerations, and only the service classes of the APIs depending on the changed classes are
+ * loaded again; the other APIs are taken from the models that generated them. Only documents whose
+ * content changed are rewritten.
+ */
+@Mojo(name = "watch", requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public class WatchMojo extends AbstractEndpointsWebAppMojo {
+
+  /** Output directory for discovery docs. */
+  @Parameter(
+    defaultValue = "${project.build.directory}/discovery-docs",
+    property = "endpoints.discoveryDocDir",
+    required = true
+  )
+  private File discoveryDocDir;
+
+  /** Output directory for openapi docs. */
+  @Parameter(
+    defaultValue = "${project.build.directory}/openapi-docs",
+    property = "endpoints.openApiDocDir",
+    required = true
+  )
+  private File openApiDocDir;
+
+  /** Default hostname of the Endpoint Host. */
+  @Parameter(property = "endpoints.hostname")
+  private String hostname;
+
+  /** Default basePath of the Endpoint Host. */
+  @Parameter(property = "endpoints.basePath")
+  private String basePath;
+
+  /** Milliseconds without further changes before regenerating, so a compile is handled once. */
+  @Parameter(defaultValue = "200", property = "endpoints.watch.debounce")
+  private long debounce;
+
+  /** Stop after this many seconds without changes, 0 to watch until the build is stopped. */
+  @Parameter(defaultValue = "0", property = "endpoints.watch.timeout")
+  private long timeout;
+
+  // what each API depends on, to load only the APIs a change affects; null to load them all
+  private ApiDependencies apiDependencies;
+  // the model holding each API, a model stays open while any API is taken from it
+  private Map<String, ApiModel> apiModels = new LinkedHashMap<>();
+
+  @Override
+  public void execute() throws MojoExecutionException {
+    createOutputDirectory(discoveryDocDir);
+    createOutputDirectory(openApiDocDir);
+
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      register(watcher, classesDir.toPath());
+      register(watcher, webappDir.toPath());
+
+      regenerate(null);
+      getLog()
+          .info(
+              "Watching "
+                  + classesDir.getAbsolutePath()
+                  + " and "
+                  + webappDir.getAbsolutePath()
+                  + " for changes, stop the build to end");
+
+      while (true) {
+        WatchKey key = timeout > 0 ? watcher.poll(timeout, TimeUnit.SECONDS) : watcher.take();
+        if (key == null) {
+          getLog().info("No changes for " + timeout + " seconds, stopped watching");
+          return;
+        }
+        Set<String> changedClasses = awaitQuiet(watcher, key);
+        if (changedClasses == null || !changedClasses.isEmpty()) {
+          regenerate(changedClasses);
+        }
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      getLog().info("Stopped watching");
+    } catch (IOException e) {
+      throw new MojoExecutionException("Failed to watch for changes", e);
+    } finally {
+      closeModels(Collections.<String, ApiModel>emptyMap());
+    }
+  }
+
+  private static void createOutputDirectory(File directory) throws MojoExecutionException {
+    if (!directory.mkdirs() && !directory.isDirectory()) {
+      throw new MojoExecutionException(
+          "Failed to create output directory: " + directory.getAbsolutePath());
+    }
+  }
+
+  // watch a directory and everything below it
+  private void register(WatchService watcher, Path root) throws IOException {
+    if (!java.nio.file.Files.isDirectory(root)) {
+      getLog().warn(root + " does not exist, its changes are not watched");
+      return;
+    }
+    java.nio.file.Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+              throws IOException {
+            dir.register(
+                watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /**
+   * Collect changes until none arrive for the debounce interval, registering new directories.
+   *
+   * @return the internal names of the changed classes, empty if no change affects the generated
+   *     documents, or null if the WEB-INF configuration changed or events were lost, so every API
+   *     has to be loaded again
+   */
+  private Set<String> awaitQuiet(WatchService watcher, WatchKey firstKey)
+      throws IOException, InterruptedException {
+    Set<String> changedClasses = new TreeSet<>();
+    boolean reloadAll = false;
+    Path classesRoot = classesDir.getAbsoluteFile().toPath();
+    Path webInfRoot = new File(webappDir, "WEB-INF").getAbsoluteFile().toPath();
+    WatchKey key = firstKey;
+    while (key != null) {
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          reloadAll = true;
+          continue;
+        }
+        Path path = dir.resolve((Path) event.context()).toAbsolutePath();
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+            && java.nio.file.Files.isDirectory(path)) {
+          register(watcher, path);
+          // classes written before the directory was registered raise no events of their own
+          if (path.startsWith(classesRoot)) {
+            try (Stream<Path> files = java.nio.file.Files.walk(path)) {
+              files.forEach(file -> addClass(changedClasses, classesRoot, file));
+            }
+          }
+        }
+        if (path.startsWith(classesRoot)) {
+          addClass(changedClasses, classesRoot, path);
+        } else if (path.startsWith(webInfRoot)) {
+          // the static content of the webapp is not an input
+          reloadAll = true;
+        }
+      }
+      key.reset();
+      key = watcher.poll(debounce, TimeUnit.MILLISECONDS);
+    }
+    return reloadAll ? null : changedClasses;
+  }
+
+  // resources next to the classes do not change the documents
+  private static void addClass(Set<String> changedClasses, Path classesRoot, Path path) {
+    String relative = classesRoot.relativize(path).toString();
+    if (relative.endsWith(".class")) {
+      changedClasses.add(
+          relative
+              .substring(0, relative.length() - ".class".length())
+              .replace(File.separatorChar, '/'));
+    }
+  }
+
+  /**
+   * Load the service classes of the APIs that depend on the changed classes again and rewrite the
+   * documents that changed. Every API is loaded again when the WEB-INF configuration changed,
+   * events were lost or classes moved between APIs. Errors are logged, so the next change can fix
+   * them.
+   *
+   * @param changedClasses the internal names of the changed classes, or null to load every API
+   */
+  private void regenerate(Set<String> changedClasses) {
+    metrics = new GoalMetrics("watch", project.getArtifactId());
+    long start = System.nanoTime();
+    ApiModel loaded = null;
+    try {
+      ApiModel.Key key = getApiModelKey(hostname, basePath);
+      List<String> serviceClassNames = key.getServiceClassNames(getLog());
+      if (serviceClassNames.isEmpty()) {
+        getLog().warn("No service classes found, configure serviceClasses or web.xml");
+        return;
+      }
+
+      Set<String> unchangedApis = new TreeSet<>();
+      if (changedClasses != null && apiDependencies != null) {
+        Set<String> changedApis;
+        try (GoalMetrics.Phase phase = metrics.start("dependencyCheck")) {
+          changedApis = apiDependencies.getChangedApis(serviceClassNames, changedClasses);
+        }
+        List<String> toLoad =
+            apiDependencies.getServiceClassesToLoad(serviceClassNames, changedApis);
+        if (changedApis.isEmpty() && toLoad.isEmpty()) {
+          getLog().info("No API depends on the changed classes");
+          return;
+        }
+        unchangedApis.addAll(apiModels.keySet());
+        unchangedApis.removeAll(changedApis);
+        // without a service class to load the key would fall back to all of them
+        if (!toLoad.isEmpty()) {
+          getLog()
+              .info(
+                  unchangedApis.size()
+                      + " of "
+                      + apiModels.size()
+                      + " APIs are unaffected, loading "
+                      + toLoad.size()
+                      + " of "
+                      + serviceClassNames.size()
+                      + " service classes");
+          // load before closing any previous model, so the dependencies' class loader stays open
+          loaded = loadPartialApiModel(key.withServiceClasses(toLoad));
+          if (!Collections.disjoint(loaded.getServiceClassesByApi().keySet(), unchangedApis)) {
+            getLog().info("Classes moved between APIs, loading every API");
+            loaded.close();
+            loaded = null;
+          }
+        }
+      }
+      if (loaded == null) {
+        unchangedApis.clear();
+        loaded = loadPartialApiModel(key);
+        apiDependencies = ApiDependencies.create(classesDir);
+      }
+
+      Set<String> previousApis = new TreeSet<>(apiModels.keySet());
+      previousApis.addAll(apiDependencies.getApis());
+      Map<String, ApiModel> models = new LinkedHashMap<>();
+      for (String api : unchangedApis) {
+        models.put(api, apiModels.get(api));
+      }
+      for (String api : loaded.getServiceClassesByApi().keySet()) {
+        models.put(api, loaded);
+      }
+      ApiModel regenerated = loaded;
+      loaded = null;
+      closeModels(models);
+      apiModels = models;
+
+      int written = 0;
+      Map<String, String> discoveryDocs;
+      String openApiDoc;
+      try (GoalMetrics.Phase phase = metrics.start("serialization")) {
+        discoveryDocs = regenerated.getDiscoveryDocs();
+        if (unchangedApis.isEmpty()) {
+          openApiDoc = regenerated.getOpenApiDoc();
+        } else {
+          // the other APIs are taken from the models that generated them
+          openApiDoc = ApiModel.combine(key, serviceClassNames, models).getOpenApiDoc();
+        }
+      }
+      try (GoalMetrics.Phase phase = metrics.start("write")) {
+        for (Map.Entry<String, String> discoveryDoc : discoveryDocs.entrySet()) {
+          if (writeIfChanged(
+              getDiscoveryDocFile(discoveryDoc.getKey()),
+              regenerated,
+              discoveryDoc.getKey(),
+              discoveryDoc.getValue())) {
+            written++;
+          }
+        }
+        // APIs that were loaded again but no longer exist
+        for (String api : previousApis) {
+          if (!models.containsKey(api)) {
+            apiDependencies.remove(api);
+            if (getDiscoveryDocFile(api).delete()) {
+              getLog().info("Removed " + getDiscoveryDocFile(api).getAbsolutePath());
+            }
+          }
+        }
+        if (writeIfChanged(
+            new File(openApiDocDir, "openapi.json"), regenerated, null, openApiDoc)) {
+          written++;
+        }
+      }
+      for (Map.Entry<String, List<String>> api : regenerated.getServiceClassesByApi().entrySet()) {
+        apiDependencies.record(api.getKey(), api.getValue());
+      }
+      getLog()
+          .info(
+              "Regenerated endpoints docs in "
+                  + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                  + " ms, "
+                  + written
+                  + " of "
+                  + (discoveryDocs.size() + 1)
+                  + " changed");
+
+    } catch (Exception e) {
+      getLog().error("Endpoints Tool Error", e);
+      // the record may no longer match the documents, so the next change loads every API
+      apiDependencies = null;
+      if (loaded != null) {
+        try {
+          loaded.close();
+        } catch (IOException closeError) {
+          getLog().warn("Failed to close the endpoints API model", closeError);
+        }
+      }
+    } finally {
+      reportMetrics();
+    }
+  }
+
+  // close the models no API is taken from any more
+  private void closeModels(Map<String, ApiModel> retained) {
+    Set<ApiModel> open = Collections.newSetFromMap(new IdentityHashMap<>());
+    open.addAll(retained.values());
+    for (ApiModel apiModel : apiModels.values()) {
+      if (open.add(apiModel)) {
+        try {
+          apiModel.close();
+        } catch (IOException e) {
+          getLog().warn("Failed to close the endpoints API model", e);
+        }
+      }
+    }
+  }
+
+  private File getDiscoveryDocFile(String api) {
+    return new File(discoveryDocDir, api + "-rest.discovery");
+  }
+
+  // api is null for the OpenAPI document, which covers every API of the model
+  private boolean writeIfChanged(File file, ApiModel apiModel, String api, String content)
+      throws IOException {
+    if (file.isFile() && Files.asCharSource(file, StandardCharsets.UTF_8).read().equals(content)) {
+      return false;
+    }
+    try (EndpointsEvents.Span span =
+        api == null
+            ? EndpointsEvents.fileWrite(metrics.getModule(), apiModel, file)
+            : EndpointsEvents.fileWrite(metrics.getModule(), api, file)) {
+      Files.asCharSink(file, StandardCharsets.UTF_8).write(content);
+      span.setBytes(file.length());
+    }
+    getLog().info("Wrote " + file.getAbsolutePath());
+    return true;
+  }
+}
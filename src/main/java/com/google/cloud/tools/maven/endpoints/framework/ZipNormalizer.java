@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rewrites zip archives so that the same content always gives the same bytes: entries sorted by
+ * name, all with one timestamp, and without extra fields or comments.
+ */
+final class ZipNormalizer {
+
+  /** The entry timestamp when the build does not configure one. */
+  static final Instant DEFAULT_TIMESTAMP = Instant.parse("1980-01-01T00:00:00Z");
+
+  private ZipNormalizer() {}
+
+  /**
+   * Parse a timestamp the way Maven's project.build.outputTimestamp is written, ISO 8601 or seconds
+   * since the epoch. Unset values give the default timestamp.
+   *
+   * @throws IllegalArgumentException if the value is neither
+   */
+  static Instant parseTimestamp(String value) {
+    // maven treats values shorter than two characters as unset
+    if (Strings.isNullOrEmpty(value) || value.length() < 2) {
+      return DEFAULT_TIMESTAMP;
+    }
+    if (value.chars().allMatch(Character::isDigit)) {
+      return Instant.ofEpochSecond(Long.parseLong(value));
+    }
+    try {
+      return OffsetDateTime.parse(value).toInstant();
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Invalid output timestamp " + value, e);
+    }
+  }
+
+  /** Rewrite an archive in place, replacing it only once the normalized copy is complete. */
+  static void normalize(File archive, Instant timestamp) throws IOException {
+    // zip entries store local time, so shift the instant to read the same in every time zone
+    long time =
+        LocalDateTime.ofInstant(timestamp, ZoneOffset.UTC)
+            .atZone(ZoneId.systemDefault())
+            .toInstant()
+            .toEpochMilli();
+    File normalized = new File(archive.getPath() + ".normalized");
+    try (ZipFile in = new ZipFile(archive);
+        ZipOutputStream out =
+            new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(normalized)))) {
+      List<ZipEntry> entries = new ArrayList<>(Collections.list(in.entries()));
+      entries.sort(Comparator.comparing(ZipEntry::getName));
+      for (ZipEntry entry : entries) {
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(time);
+        out.putNextEntry(copy);
+        if (!entry.isDirectory()) {
+          try (InputStream entryIn = in.getInputStream(entry)) {
+            ByteStreams.copy(entryIn, out);
+          }
+        }
+        out.closeEntry();
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(normalized.toPath());
+      throw e;
+    }
+    Files.move(normalized.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
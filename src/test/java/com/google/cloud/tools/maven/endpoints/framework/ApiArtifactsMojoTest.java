@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.maven.it.VerificationException;
+import org.apache.maven.it.Verifier;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.matchers.JUnitMatchers;
+import org.junit.rules.TemporaryFolder;
+
+public class ApiArtifactsMojoTest {
+
+  private static final String DISCOVERY_DOC_PATH =
+      "target/discovery-docs/testApi-v1-rest.discovery";
+  private static final String OPEN_API_DOC_PATH = "target/openapi-docs/openapi.json";
+
+  @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  // client libraries need the remote generator, only generate the docs
+  @Test
+  public void testDocs() throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.artifacts=discoveryDocs,openApiDocs");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:apiArtifacts"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+    verifier.assertFilePresent(OPEN_API_DOC_PATH);
+    verifier.assertFileNotPresent("target/client-libs");
+
+    String discovery = Files.toString(new File(testDir, DISCOVERY_DOC_PATH), Charsets.UTF_8);
+    Assert.assertThat(
+        discovery, JUnitMatchers.containsString("https://myapi.appspot.com/_ah/api/"));
+    String openApi = Files.toString(new File(testDir, OPEN_API_DOC_PATH), Charsets.UTF_8);
+    Assert.assertThat(openApi, JUnitMatchers.containsString("myapi.appspot.com"));
+  }
+
+  @Test
+  public void testOpenApiFormatsAndUpToDate()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.addCliOption("-Dendpoints.artifacts=discoveryDocs,openApiDocs");
+    verifier.addCliOption("-Dendpoints.openApiDocGzip=true");
+    verifier.addCliOption("-Dendpoints.openApiDocYaml=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:apiArtifacts"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent(OPEN_API_DOC_PATH + ".gz");
+    verifier.assertFilePresent("target/openapi-docs/openapi.yaml");
+    verifier.assertFilePresent("target/openapi-docs/openapi.yaml.gz");
+
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:apiArtifacts"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("API artifacts are up to date");
+  }
+
+  @Test
+  public void testClientLibTargets()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+
+    // the remote generator is not reachable from tests, serve the library from the cache
+    String discoveryDoc = Files.toString(new File(testDir, DISCOVERY_DOC_PATH), Charsets.UTF_8);
+    File clientLib = new File(tmpDir.newFolder(), "testApi-v1-java.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(clientLib))) {
+      out.putNextEntry(new ZipEntry("testApi/build.gradle"));
+      out.closeEntry();
+    }
+    File cacheDir = new File(tmpDir.getRoot(), "cache");
+    new ClientLibCache(cacheDir, Long.MAX_VALUE, new SystemStreamLog())
+        .put(ClientLibCache.computeKey(discoveryDoc, "java", "gradle", "2.2.2"), clientLib);
+
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibTargets=java:gradle");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:apiArtifacts"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Restored java:gradle client library for testApi-v1 from cache");
+    verifier.assertFilePresent("target/client-libs/java-gradle/testApi-v1-java.zip");
+    verifier.assertFileNotPresent("target/client-libs/testApi-v1-java.zip");
+  }
+
+  @Test
+  public void testUnknownArtifact()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.artifacts=discoveryDocs,wsdl");
+    try {
+      verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:apiArtifacts"));
+      Assert.fail();
+    } catch (VerificationException e) {
+      verifier.verifyTextInLog("Unknown API artifact wsdl");
+    }
+  }
+}
@@ -19,14 +19,19 @@ package com.google.cloud.tools.maven.endpoints.framework;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.apache.maven.it.VerificationException;
 import org.apache.maven.it.Verifier;
+import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
@@ -122,4 +127,167 @@ public class ClientLibsMojoTest {
     InputStream is = zip.getInputStream(zip.getEntry(path));
     return CharStreams.toString(new InputStreamReader(is, Charsets.UTF_8));
   }
+
+  @Test
+  public void testCompileClientLibs()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+
+    File cacheDir = new File(tmpDir.getRoot(), "cache");
+    seedClientLibCache(testDir, cacheDir, "maven");
+
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.compileClientLibs=true");
+    verifier.addCliOption("-Dendpoints.clientLibClassifier=client");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:clientLibs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Restored java:maven client library for testApi-v1 from cache");
+
+    try (ZipFile jar = new ZipFile(new File(testDir, "target/testApi-v1-client.jar"))) {
+      Assert.assertNotNull(jar.getEntry("com/example/testApi/TestApi.class"));
+      Assert.assertNotNull(jar.getEntry("META-INF/MANIFEST.MF"));
+    }
+    try (ZipFile sourcesJar =
+        new ZipFile(new File(testDir, "target/testApi-v1-client-sources.jar"))) {
+      Assert.assertNotNull(sourcesJar.getEntry("com/example/testApi/TestApi.java"));
+    }
+  }
+
+  @Test
+  public void testClientLibTargets()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    File cacheDir = new File(tmpDir.getRoot(), "cache");
+    seedClientLibCache(testDir, cacheDir, "maven");
+    seedClientLibCache(testDir, cacheDir, "gradle");
+
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibTargets=java:maven,java:gradle");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:clientLibs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent("target/client-libs/java-maven/testApi-v1-java.zip");
+    verifier.assertFilePresent("target/client-libs/java-gradle/testApi-v1-java.zip");
+    verifier.assertFilePresent("target/client-libs/java-gradle/testApi-v1-rest.discovery");
+    verifier.assertFileNotPresent(CLIENT_LIB_PATH);
+  }
+
+  @Test
+  public void testCompileClientLibsOfMavenTarget()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    File cacheDir = new File(tmpDir.getRoot(), "cache");
+    seedClientLibCache(testDir, cacheDir, "maven");
+    seedClientLibCache(testDir, cacheDir, "gradle");
+
+    // the gradle project has no pom.xml to read the dependencies from
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibTargets=java:gradle,java:maven");
+    verifier.addCliOption("-Dendpoints.compileClientLibs=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:clientLibs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent("target/testApi-v1-client.jar");
+  }
+
+  @Test
+  public void testCompileClientLibsWithoutMavenTarget()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibTargets=java:gradle");
+    verifier.addCliOption("-Dendpoints.compileClientLibs=true");
+    try {
+      verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:clientLibs"));
+      Assert.fail("Expected the build to fail");
+    } catch (VerificationException e) {
+      // expected
+    }
+    verifier.verifyTextInLog(
+        "compileClientLibs reads the dependencies of client libraries from the pom.xml of a"
+            + " java:maven target");
+  }
+
+  @Test
+  public void testCompileClientLibsRejectsEntriesOutsideProject()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    File cacheDir = new File(tmpDir.getRoot(), "cache");
+    seedClientLibCache(
+        testDir, cacheDir, "maven", "testApi/src/main/java/../../../../../escaped.txt");
+
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.compileClientLibs=true");
+    try {
+      verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:clientLibs"));
+      Assert.fail("Expected the build to fail");
+    } catch (VerificationException e) {
+      // expected
+    }
+    verifier.verifyTextInLog(
+        "Client library entry testApi/src/main/java/../../../../../escaped.txt is outside of");
+    Assert.assertFalse(new File(testDir, "escaped.txt").exists());
+    Assert.assertFalse(new File(testDir.getParentFile(), "escaped.txt").exists());
+  }
+
+  // store a small client project in the cache, so the test does not depend on the generator service
+  private void seedClientLibCache(
+      File testDir, File cacheDir, String buildSystem, String... extraEntries) throws IOException {
+    String discoveryDoc =
+        Files.toString(
+            new File(testDir, "target/discovery-docs/testApi-v1-rest.discovery"), Charsets.UTF_8);
+    File clientLib = new File(tmpDir.newFolder(), "testApi-v1-java.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(clientLib))) {
+      if ("maven".equals(buildSystem)) {
+        writeEntry(
+            out,
+            "testApi/pom.xml",
+            "<project><properties><api.version>1.25.0</api.version></properties><dependencies>"
+                + "<dependency><groupId>com.google.api-client</groupId>"
+                + "<artifactId>google-api-client</artifactId><version>${api.version}</version>"
+                + "</dependency></dependencies></project>");
+      } else {
+        writeEntry(
+            out,
+            "testApi/build.gradle",
+            "dependencies { compile 'com.google.api-client:google-api-client:1.25.0' }");
+      }
+      writeEntry(
+          out,
+          "testApi/src/main/java/com/example/testApi/TestApi.java",
+          "package com.example.testApi;\n"
+              + "public class TestApi {\n"
+              + "  public static final com.google.api.client.http.GenericUrl ROOT =\n"
+              + "      new com.google.api.client.http.GenericUrl(\""
+              + DEFAULT_URL
+              + "\");\n"
+              + "}\n");
+      for (String extraEntry : extraEntries) {
+        writeEntry(out, extraEntry, "extra");
+      }
+    }
+    new ClientLibCache(cacheDir, Long.MAX_VALUE, new SystemStreamLog())
+        .put(ClientLibCache.computeKey(discoveryDoc, "java", buildSystem, "2.2.2"), clientLib);
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
 }
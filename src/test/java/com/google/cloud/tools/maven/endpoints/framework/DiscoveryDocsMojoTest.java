@@ -22,6 +22,10 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.apache.maven.it.VerificationException;
 import org.apache.maven.it.Verifier;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
@@ -58,6 +62,264 @@ public class DiscoveryDocsMojoTest {
     Assert.assertThat(discovery, JUnitMatchers.containsString(DEFAULT_URL));
   }
 
+  @Test
+  public void testApiModelSharedWithOpenApiDocs()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.executeGoals(
+        Arrays.asList(
+            "compile", "endpoints-framework:discoveryDocs", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+    verifier.assertFilePresent("target/openapi-docs/openapi.json");
+    verifier.verifyTextInLog("Reusing endpoints API model from an earlier goal");
+  }
+
+  @Test
+  public void testUpToDate() throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    buildAndVerify(testDir);
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Discovery docs are up to date");
+
+    // a removed output is regenerated even though the inputs did not change
+    new File(testDir, DISCOVERY_DOC_PATH).delete();
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+  }
+
+  @Test
+  public void testRegenerateChangedApis()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new GeneratedServerProject(tmpDir.getRoot()).apis(3).methods(2).beans(2).build();
+    buildAndVerify(testDir);
+    File unchangedDoc = new File(testDir, "target/discovery-docs/scale0-v1-rest.discovery");
+    long unchangedModified = unchangedDoc.lastModified();
+
+    // a bean nested below the API's method types
+    File bean = new File(testDir, "src/main/java/com/example/scale/Bean1x1x1.java");
+    String source = Files.toString(bean, Charsets.UTF_8);
+    Files.asCharSink(bean, Charsets.UTF_8)
+        .write(source.replace("public long count;", "public long count;\n  public int added;"));
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("3 of 4 APIs are up to date, loading 1 of 4 service classes");
+
+    Assert.assertEquals(unchangedModified, unchangedDoc.lastModified());
+    String changedDoc =
+        Files.toString(
+            new File(testDir, "target/discovery-docs/scale1-v1-rest.discovery"), Charsets.UTF_8);
+    Assert.assertThat(changedDoc, JUnitMatchers.containsString("\"added\""));
+  }
+
+  @Test
+  public void testVerifyReproducible()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new GeneratedServerProject(tmpDir.getRoot()).apis(3).methods(2).beans(2).build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.verifyReproducible=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Verified that 4 outputs are reproducible");
+  }
+
+  @Test
+  public void testPruneClasspath()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.addCliOption("-Dendpoints.pruneClasspath=true");
+    verifier.addCliOption("-Dendpoints.incremental=false");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Pruned classpath to");
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+
+    String pruned =
+        Files.toString(
+            new File(testDir, "target/endpoints-framework/classpathPruning.txt"), Charsets.UTF_8);
+    Assert.assertThat(pruned, JUnitMatchers.containsString("endpoints-framework"));
+    Assert.assertThat(pruned, CoreMatchers.not(JUnitMatchers.containsString("appengine-api")));
+
+    // the pruned set is reused while the classes and dependencies are unchanged
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Reusing pruned classpath");
+  }
+
+  @Test
+  public void testFlightRecorderEvents()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    // outside the project, which the build cleans
+    File recording = new File(tmpDir.newFolder("recording"), "endpoints.jfr");
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setForkJvm(true);
+    verifier.setEnvironmentVariable(
+        "MAVEN_OPTS",
+        "-XX:StartFlightRecording=dumponexit=true,filename=" + recording.getAbsolutePath());
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+
+    // the event name without its prefix, with the API for events of one
+    Set<String> events = new HashSet<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(recording.toPath())) {
+      String name = event.getEventType().getName();
+      if (name.startsWith("com.google.cloud.tools.maven.endpoints.")) {
+        Assert.assertEquals("1-standard", event.getString("module"));
+        String shortName = name.substring(name.lastIndexOf('.') + 1);
+        events.add(event.hasField("api") ? shortName + " " + event.getString("api") : shortName);
+      }
+    }
+    Assert.assertThat(
+        events,
+        CoreMatchers.hasItems(
+            "Classpath",
+            "ServiceClassLoading",
+            "DocumentGeneration testApi-v1",
+            "FileWrite testApi-v1"));
+  }
+
+  @Test
+  public void testSkipStaticInitializers()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    // an initializer that cannot run during the build, an enum the API metadata needs, initialized
+    // when the annotations of its method are read, and an enum that is loaded but never used
+    File service = new File(testDir, "src/main/java/com/example/Test.java");
+    String source = Files.toString(service, Charsets.UTF_8);
+    Files.asCharSink(service, Charsets.UTF_8)
+        .write(
+            source.replace(
+                "public class Test {",
+                "public class Test {\n"
+                    + "  static {\n"
+                    + "    if (Boolean.TRUE) throw new IllegalStateException(\"offline\");\n"
+                    + "  }\n"
+                    + "  public enum Color { RED, GREEN }\n"
+                    + "  @java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+                    + "  public @interface Tagged { Color value(); }\n"
+                    + "  @Tagged(Color.GREEN)\n"
+                    + "  @ApiMethod(name = \"color\", path = \"color\")\n"
+                    + "  public MyBean color(@Named(\"color\") Color color) {\n"
+                    + "    return new MyBean();\n"
+                    + "  }\n"
+                    + "  public enum Region {\n"
+                    + "    EU;\n"
+                    + "    static {\n"
+                    + "      if (Boolean.TRUE) throw new IllegalStateException(\"offline\");\n"
+                    + "    }\n"
+                    + "  }\n"
+                    + "  private void unused(Region region) {}\n"));
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.skipStaticInitializers=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Kept static initializer of com.example.Test$Color");
+    // only the enum that was used is reported, with the time its initializer took
+    verifier.verifyTextInLog("kept static initializers ran:");
+    String log = Files.toString(new File(testDir, verifier.getLogFileName()), Charsets.UTF_8);
+    Assert.assertTrue(log.matches("(?s).*\\n  com\\.example\\.Test\\$Color [0-9.]+ ms.*"));
+    Assert.assertFalse(log.matches("(?s).*\\n  com\\.example\\.Test\\$Region [0-9.]+ ms.*"));
+
+    String discovery = Files.toString(new File(testDir, DISCOVERY_DOC_PATH), Charsets.UTF_8);
+    Assert.assertThat(discovery, JUnitMatchers.containsString("\"GREEN\""));
+  }
+
+  @Test
+  public void testScanServiceClasses()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir =
+        new TestProject(tmpDir.getRoot(), "/projects/server")
+            .configuration(
+                "<configuration><scanServiceClasses>true</scanServiceClasses></configuration>")
+            .build();
+    // nothing left to read the service classes from but the compiled classes
+    Assert.assertTrue(new File(testDir, "src/main/webapp/WEB-INF/web.xml").delete());
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Found 1 service classes");
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+  }
+
+  @Test
+  public void testScanServiceClassesDifferFromWebXml()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir =
+        new TestProject(tmpDir.getRoot(), "/projects/server")
+            .configuration(
+                "<configuration><scanServiceClasses>true</scanServiceClasses></configuration>")
+            .build();
+    // an API web.xml does not list
+    Files.asCharSink(new File(testDir, "src/main/java/com/example/Other.java"), Charsets.UTF_8)
+        .write(
+            "package com.example;\n"
+                + "import com.google.api.server.spi.config.Api;\n"
+                + "@Api(name = \"otherApi\", version = \"v1\")\n"
+                + "public class Other {\n"
+                + "  public MyBean other() {\n"
+                + "    return new MyBean();\n"
+                + "  }\n"
+                + "}\n");
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyTextInLog("Using the service classes found by scanning the compiled classes");
+    verifier.verifyTextInLog(
+        "The scanned service classes differ from web.xml, only scanned: [com.example.Other]");
+    verifier.assertFilePresent("target/discovery-docs/otherApi-v1-rest.discovery");
+  }
+
+  @Test
+  public void testNoServiceClasses()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    Assert.assertTrue(new File(testDir, "src/main/webapp/WEB-INF/web.xml").delete());
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    try {
+      verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+      Assert.fail("Expected the build to fail");
+    } catch (VerificationException e) {
+      verifier.verifyTextInLog("No service classes found, configure serviceClasses or web.xml");
+    }
+    verifier.assertFileNotPresent(DISCOVERY_DOC_PATH);
+  }
+
+  @Test
+  public void testMetricsReport()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:discoveryDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("discoveryDocs took");
+
+    String report =
+        Files.toString(
+            new File(testDir, "target/endpoints-metrics/discoveryDocs.json"), Charsets.UTF_8);
+    Assert.assertThat(report, JUnitMatchers.containsString("\"name\" : \"classLoading\""));
+    Assert.assertThat(report, JUnitMatchers.containsString("\"name\" : \"serialization\""));
+  }
+
   @Test
   public void testApplicationId()
       throws IOException, VerificationException, XmlPullParserException {
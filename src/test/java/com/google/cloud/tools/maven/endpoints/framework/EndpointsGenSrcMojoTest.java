@@ -17,18 +17,34 @@
 
 package com.google.cloud.tools.maven.endpoints.framework;
 
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.apache.maven.it.VerificationException;
 import org.apache.maven.it.Verifier;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 public class EndpointsGenSrcMojoTest {
 
+  private static final String CACHED_SOURCE =
+      "package com.example.testApi;\n\npublic class TestApi {}\n";
+
   @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
 
   @Test
@@ -42,4 +58,221 @@ public class EndpointsGenSrcMojoTest {
     verifier.assertFilePresent(
         "target/generated-sources/endpoints/com/example/testApi/TestApi.java");
   }
+
+  @Test
+  public void testClientLibCacheHit()
+      throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    File cacheDir = seedClientLibCache(readDiscoveryDoc(testDir));
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Using cached client library for");
+    Assert.assertEquals(
+        CACHED_SOURCE,
+        Files.asCharSource(
+                new File(
+                    testDir, "target/generated-sources/endpoints/com/example/testApi/TestApi.java"),
+                StandardCharsets.UTF_8)
+            .read());
+  }
+
+  @Test
+  public void testLowMemory() throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    File cacheDir = seedClientLibCache(readDiscoveryDoc(testDir));
+
+    // the streamed discovery doc hashes to the key of the doc read as a string
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.lowMemory=true");
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("of testApi-v1 with 1 schemas");
+    verifier.verifyTextInLog("Using cached client library for");
+    verifier.verifyTextInLog(
+        "Peak heap while generating the client library of testApi-v1-rest.discovery: ");
+    verifier.verifyTextInLog(
+        "Peak heap while extracting the sources of testApi-v1-rest.discovery: ");
+    Assert.assertEquals(
+        CACHED_SOURCE,
+        Files.asCharSource(
+                new File(
+                    testDir, "target/generated-sources/endpoints/com/example/testApi/TestApi.java"),
+                StandardCharsets.UTF_8)
+            .read());
+  }
+
+  @Test
+  public void testMethodFilters()
+      throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    // the docs are written with single quotes for readability
+    String discoveryDoc =
+        "{'name':'testApi','version':'v1','protocol':'rest',"
+            + "'schemas':{'Photo':{'id':'Photo','properties':{'owner':{'$ref':'User'}}},"
+            + "'User':{'id':'User'},'Unused':{'id':'Unused'}},"
+            + "'methods':{'echo':{'response':{'$ref':'Unused'}}},"
+            + "'resources':{'users':{'methods':{'get':{'response':{'$ref':'User'}}},"
+            + "'resources':{'photos':{'methods':{'list':{'response':{'$ref':'Photo'}},"
+            + "'delete':{}}}}},'admin':{'methods':{'reset':{}}}}}";
+    String filteredDoc =
+        "{'name':'testApi','version':'v1','protocol':'rest',"
+            + "'schemas':{'Photo':{'id':'Photo','properties':{'owner':{'$ref':'User'}}},"
+            + "'User':{'id':'User'}},"
+            + "'resources':{'users':{"
+            + "'resources':{'photos':{'methods':{'list':{'response':{'$ref':'Photo'}}}}}}}}";
+    Files.asCharSink(
+            new File(testDir, "src/endpoints/testApi-v1-rest.discovery"), StandardCharsets.UTF_8)
+        .write(discoveryDoc.replace('\'', '"'));
+    // only the filtered doc is in the cache, generating from the full doc would fail offline
+    File cacheDir = seedClientLibCache(filteredDoc.replace('\'', '"'));
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.includeMethods=users");
+    verifier.addCliOption("-Dendpoints.excludeMethods=**.delete,users.get");
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("kept 1 of 5 methods and 2 of 3 schemas");
+    verifier.verifyTextInLog("Using cached client library for");
+  }
+
+  private static String readDiscoveryDoc(File testDir) throws IOException {
+    return Files.asCharSource(
+            new File(testDir, "src/endpoints/testApi-v1-rest.discovery"), StandardCharsets.UTF_8)
+        .read();
+  }
+
+  @Test
+  public void testGeneratedSourcesSync()
+      throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    File discoveryDocFile = new File(testDir, "src/endpoints/testApi-v1-rest.discovery");
+    String discoveryDoc = readDiscoveryDoc(testDir);
+    File cacheDir = tmpDir.newFolder("cache");
+    Map<String, String> sources = new HashMap<>();
+    sources.put("Unchanged.java", "class Unchanged {}\n");
+    sources.put("Changed.java", "class Changed {}\n");
+    sources.put("Removed.java", "class Removed {}\n");
+    seedClientLibCache(cacheDir, discoveryDoc, sources);
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("wrote 3, deleted 0 and kept 0 unchanged generated sources");
+    File sourceDir = new File(testDir, "target/generated-sources/endpoints/com/example/testApi");
+    File unchanged = new File(sourceDir, "Unchanged.java");
+    Assert.assertTrue(unchanged.setLastModified(1000000000000L));
+
+    // a changed discovery doc generates another archive
+    String changedDoc = discoveryDoc + "\n";
+    Files.asCharSink(discoveryDocFile, StandardCharsets.UTF_8).write(changedDoc);
+    sources.put("Changed.java", "class Changed { int field; }\n");
+    sources.remove("Removed.java");
+    sources.put("Added.java", "class Added {}\n");
+    seedClientLibCache(cacheDir, changedDoc, sources);
+
+    verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("wrote 2, deleted 1 and kept 1 unchanged generated sources");
+    Assert.assertEquals(1000000000000L, unchanged.lastModified());
+    Assert.assertFalse(new File(sourceDir, "Removed.java").exists());
+    Assert.assertTrue(new File(sourceDir, "Added.java").isFile());
+    Assert.assertEquals(
+        "class Changed { int field; }\n",
+        Files.asCharSource(new File(sourceDir, "Changed.java"), StandardCharsets.UTF_8).read());
+  }
+
+  @Test
+  public void testParallelExtraction()
+      throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    File cacheDir = tmpDir.newFolder("cache");
+    Map<String, String> sources = new HashMap<>();
+    for (int i = 0; i < 200; i++) {
+      sources.put("package" + i % 10 + "/Class" + i + ".java", "class Class" + i + " {}\n");
+    }
+    // over the size of the small file fast path
+    sources.put("Large.java", "class Large {}\n" + Strings.repeat("// padding\n", 10000));
+    seedClientLibCache(cacheDir, readDiscoveryDoc(testDir), sources);
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.threads=4");
+    verifier.executeGoals(Collections.singletonList("generate-sources"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("wrote 201, deleted 0 and kept 0 unchanged generated sources");
+    File sourceDir = new File(testDir, "target/generated-sources/endpoints/com/example/testApi");
+    for (Map.Entry<String, String> source : sources.entrySet()) {
+      Assert.assertEquals(
+          source.getValue(),
+          Files.asCharSource(new File(sourceDir, source.getKey()), StandardCharsets.UTF_8).read());
+    }
+  }
+
+  @Test
+  public void testRejectsSourcesOutsideOutputDir()
+      throws XmlPullParserException, IOException, VerificationException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/client").build();
+    File cacheDir = tmpDir.newFolder("cache");
+    seedClientLibCache(
+        cacheDir,
+        readDiscoveryDoc(testDir),
+        Collections.singletonMap("../../../../escaped.txt", "escaped\n"));
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.clientLibCacheDir=" + cacheDir.getAbsolutePath());
+    try {
+      verifier.executeGoals(Collections.singletonList("generate-sources"));
+      Assert.fail("Expected the build to fail");
+    } catch (VerificationException e) {
+      // expected
+    }
+    verifier.verifyTextInLog(
+        "Generated source com/example/testApi/../../../../escaped.txt is outside of");
+    Assert.assertFalse(new File(testDir, "target/generated-sources/escaped.txt").exists());
+  }
+
+  // seed a cache with an archive the remote generator would never produce
+  private File seedClientLibCache(String discoveryDoc) throws IOException, XmlPullParserException {
+    File cacheDir = tmpDir.newFolder("cache");
+    seedClientLibCache(
+        cacheDir, discoveryDoc, Collections.singletonMap("TestApi.java", CACHED_SOURCE));
+    return cacheDir;
+  }
+
+  // add an archive of sources in com.example.testApi for a discovery doc to a cache
+  private static void seedClientLibCache(
+      File cacheDir, String discoveryDoc, Map<String, String> sources)
+      throws IOException, XmlPullParserException {
+    String key = ClientLibCache.computeKey(discoveryDoc, "java", "maven", getToolVersion());
+    File entryDir = new File(cacheDir, key);
+    entryDir.mkdirs();
+    try (ZipOutputStream zip =
+        new ZipOutputStream(new FileOutputStream(new File(entryDir, "testApi-v1-java.zip")))) {
+      zip.putNextEntry(new ZipEntry("testApi/"));
+      for (Map.Entry<String, String> source : sources.entrySet()) {
+        zip.putNextEntry(
+            new ZipEntry("testApi/src/main/java/com/example/testApi/" + source.getKey()));
+        zip.write(source.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  private static String getToolVersion() throws IOException, XmlPullParserException {
+    Model model = new MavenXpp3Reader().read(new FileReader("pom.xml"));
+    for (Dependency dependency : model.getDependencies()) {
+      if (dependency.getArtifactId().equals("endpoints-framework-tools")) {
+        return dependency.getVersion();
+      }
+    }
+    throw new IllegalStateException("endpoints-framework-tools is not a dependency");
+  }
 }
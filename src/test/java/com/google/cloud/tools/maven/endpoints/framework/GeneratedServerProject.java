@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.maven.it.VerificationException;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * A copy of the server project with generated service classes added, to test the goals at the size
+ * of real APIs. Every API gets its own bean graph: each bean type is a chain of nested beans, and
+ * with cycles enabled the deepest bean refers back to the top of its chain.
+ */
+public class GeneratedServerProject extends TestProject {
+
+  private static final String PACKAGE = "com.example.scale";
+
+  private int apis = 1;
+  private int methods = 10;
+  private int beans = 5;
+  private int depth = 2;
+  private boolean cycles;
+
+  public GeneratedServerProject(File testDir) {
+    super(testDir, "/projects/server");
+  }
+
+  public GeneratedServerProject apis(int apis) {
+    this.apis = apis;
+    return this;
+  }
+
+  public GeneratedServerProject methods(int methodsPerApi) {
+    this.methods = methodsPerApi;
+    return this;
+  }
+
+  public GeneratedServerProject beans(int beansPerApi) {
+    this.beans = beansPerApi;
+    return this;
+  }
+
+  public GeneratedServerProject depth(int depth) {
+    this.depth = depth;
+    return this;
+  }
+
+  public GeneratedServerProject cycles(boolean cycles) {
+    this.cycles = cycles;
+    return this;
+  }
+
+  @Override
+  public File build() throws IOException, VerificationException, XmlPullParserException {
+    File root = super.build();
+    File sourceDir = new File(root, "src/main/java/" + PACKAGE.replace('.', '/'));
+    sourceDir.mkdirs();
+
+    List<String> serviceClasses = new ArrayList<>();
+    serviceClasses.add("com.example.Test");
+    for (int api = 0; api < apis; api++) {
+      for (int bean = 0; bean < beans; bean++) {
+        for (int level = 0; level < depth; level++) {
+          String name = beanName(api, bean, level);
+          FileUtils.fileWrite(new File(sourceDir, name + ".java"), beanSource(api, bean, level));
+        }
+      }
+      String apiClass = "Api" + api;
+      FileUtils.fileWrite(new File(sourceDir, apiClass + ".java"), apiSource(api));
+      serviceClasses.add(PACKAGE + "." + apiClass);
+    }
+
+    // register the generated services the same way as the existing one
+    File webXml = new File(root, "src/main/webapp/WEB-INF/web.xml");
+    String webXmlContents = FileUtils.fileRead(webXml);
+    webXmlContents =
+        webXmlContents.replace(
+            "<param-value>com.example.Test</param-value>",
+            "<param-value>" + String.join(",", serviceClasses) + "</param-value>");
+    FileUtils.fileWrite(webXml, webXmlContents);
+    return root;
+  }
+
+  private static String beanName(int api, int bean, int level) {
+    return "Bean" + api + "x" + bean + "x" + level;
+  }
+
+  private String beanSource(int api, int bean, int level) {
+    StringBuilder source = new StringBuilder();
+    source.append("package ").append(PACKAGE).append(";\n\n");
+    source.append("public class ").append(beanName(api, bean, level)).append(" {\n");
+    source.append("  public String name;\n");
+    source.append("  public long count;\n");
+    source.append("  public java.util.List<String> tags;\n");
+    if (level + 1 < depth) {
+      String child = beanName(api, bean, level + 1);
+      source.append("  public ").append(child).append(" child;\n");
+      source.append("  public java.util.List<").append(child).append("> children;\n");
+    } else if (cycles) {
+      source.append("  public ").append(beanName(api, bean, 0)).append(" root;\n");
+    }
+    return source.append("}\n").toString();
+  }
+
+  private String apiSource(int api) {
+    StringBuilder source = new StringBuilder();
+    source.append("package ").append(PACKAGE).append(";\n\n");
+    source.append("import com.google.api.server.spi.config.Api;\n");
+    source.append("import com.google.api.server.spi.config.ApiMethod;\n");
+    source.append("import com.google.api.server.spi.config.Named;\n\n");
+    source.append("@Api(name = \"scale").append(api).append("\", version = \"v1\")\n");
+    source.append("public class Api").append(api).append(" {\n");
+    for (int method = 0; method < methods; method++) {
+      String bean = beanName(api, beans == 0 ? 0 : method % beans, 0);
+      // alternate reads and writes, each method on its own path
+      if (method % 2 == 0) {
+        source.append("  @ApiMethod(path = \"get").append(method).append("/{id}\")\n");
+        source.append("  public ").append(bean).append(" get").append(method);
+        source.append("(@Named(\"id\") String id) {\n    return null;\n  }\n");
+      } else {
+        source.append("  @ApiMethod(path = \"insert").append(method).append("\")\n");
+        source.append("  public ").append(bean).append(" insert").append(method);
+        source.append("(").append(bean).append(" body) {\n    return body;\n  }\n");
+      }
+    }
+    return source.append("}\n").toString();
+  }
+}
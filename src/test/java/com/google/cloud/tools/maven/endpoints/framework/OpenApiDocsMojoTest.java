@@ -18,10 +18,14 @@
 package com.google.cloud.tools.maven.endpoints.framework;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 import org.apache.maven.it.VerificationException;
 import org.apache.maven.it.Verifier;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
@@ -56,6 +60,63 @@ public class OpenApiDocsMojoTest {
     Assert.assertThat(openapi, JUnitMatchers.containsString(DEFAULT_HOSTNAME));
   }
 
+  @Test
+  public void testGzipAndYaml() throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.openApiDocGzip=true");
+    verifier.addCliOption("-Dendpoints.openApiDocYaml=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+
+    byte[] json = Files.toByteArray(new File(testDir, OPEN_API_DOC_PATH));
+    Assert.assertArrayEquals(json, gunzip(new File(testDir, OPEN_API_DOC_PATH + ".gz")));
+    File yaml = new File(testDir, "target/openapi-docs/openapi.yaml");
+    Assert.assertArrayEquals(
+        Files.toByteArray(yaml), gunzip(new File(testDir, "target/openapi-docs/openapi.yaml.gz")));
+    String yamlDoc = Files.toString(yaml, Charsets.UTF_8);
+    Assert.assertThat(yamlDoc, JUnitMatchers.containsString("host: \"" + DEFAULT_HOSTNAME + "\""));
+  }
+
+  @Test
+  public void testVerifyReproducible()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.openApiDocGzip=true");
+    verifier.addCliOption("-Dendpoints.openApiDocYaml=true");
+    verifier.addCliOption("-Dendpoints.verifyReproducible=true");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Verified that 4 outputs are reproducible");
+  }
+
+  private static byte[] gunzip(File file) throws IOException {
+    try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void testUpToDate() throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+    buildAndVerify(testDir);
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.setAutoclean(false);
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("OpenAPI document is up to date");
+
+    // a removed output is regenerated even though the inputs did not change
+    new File(testDir, OPEN_API_DOC_PATH).delete();
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent(OPEN_API_DOC_PATH);
+  }
+
   @Test
   public void testApplicationId()
       throws IOException, VerificationException, XmlPullParserException {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.maven.it.VerificationException;
+import org.apache.maven.it.Verifier;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.hamcrest.CoreMatchers;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.matchers.JUnitMatchers;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs the server goals on many modules of a parallel reactor build at once. */
+public class ParallelBuildTest {
+
+  private static final int MODULES = 8;
+
+  @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  // an aggregator of copies of the server project, each with its own artifactId
+  private List<File> buildMultiModuleProject(File root)
+      throws IOException, VerificationException, XmlPullParserException {
+    List<File> modules = new ArrayList<>();
+    StringBuilder moduleElements = new StringBuilder();
+    for (int i = 0; i < MODULES; i++) {
+      File module = new TestProject(new File(root, "module" + i), "/projects/server").build();
+      File pom = new File(module, "pom.xml");
+      FileUtils.fileWrite(
+          pom,
+          FileUtils.fileRead(pom)
+              .replace(
+                  "<artifactId>1-standard</artifactId>",
+                  "<artifactId>module" + i + "</artifactId>"));
+      moduleElements
+          .append("<module>")
+          .append(root.toPath().relativize(module.toPath()).toString().replace('\\', '/'))
+          .append("</module>");
+      modules.add(module);
+    }
+    FileUtils.fileWrite(
+        new File(root, "pom.xml"),
+        "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">"
+            + "<modelVersion>4.0.0</modelVersion>"
+            + "<groupId>com.test</groupId><artifactId>parallel</artifactId><version>1.0.0</version>"
+            + "<packaging>pom</packaging>"
+            + "<modules>"
+            + moduleElements
+            + "</modules>"
+            // resolves the plugin prefix in the aggregator
+            + "<build><pluginManagement><plugins><plugin>"
+            + "<groupId>com.google.cloud.tools</groupId>"
+            + "<artifactId>endpoints-framework-maven-plugin</artifactId>"
+            + "<version>"
+            + new MavenXpp3Reader().read(new FileReader("pom.xml")).getVersion()
+            + "</version>"
+            + "</plugin></plugins></pluginManagement></build>"
+            + "</project>");
+    return modules;
+  }
+
+  @Test
+  public void testParallelReactor()
+      throws IOException, VerificationException, XmlPullParserException {
+    File root = tmpDir.getRoot();
+    List<File> modules = buildMultiModuleProject(root);
+
+    Verifier verifier = new Verifier(root.getAbsolutePath());
+    verifier.addCliOption("-T " + MODULES);
+    // the aggregator has no service classes, so the goals would fail on it
+    List<String> projects = new ArrayList<>();
+    for (int i = 0; i < MODULES; i++) {
+      projects.add(":module" + i);
+    }
+    verifier.addCliOption("-pl " + Joiner.on(',').join(projects));
+    verifier.addCliOption("-Dendpoints.incremental=false");
+    verifier.addCliOption("-Dendpoints.artifacts=discoveryDocs,openApiDocs");
+    // every goal twice per module, so the pooled class loaders are shared and released concurrently
+    verifier.executeGoals(
+        Arrays.asList(
+            "compile",
+            "endpoints-framework:discoveryDocs",
+            "endpoints-framework:openApiDocs",
+            "endpoints-framework:apiArtifacts"));
+    verifier.verifyErrorFreeLog();
+
+    String log = Files.toString(new File(root, verifier.getLogFileName()), Charsets.UTF_8);
+    Assert.assertThat(log, CoreMatchers.not(JUnitMatchers.containsString("thread-safe")));
+    Assert.assertThat(log, CoreMatchers.not(JUnitMatchers.containsString("@threadSafe")));
+    for (File module : modules) {
+      verifier.assertFilePresent(
+          new File(module, "target/discovery-docs/testApi-v1-rest.discovery").getAbsolutePath());
+      verifier.assertFilePresent(
+          new File(module, "target/openapi-docs/openapi.json").getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.maven.it.VerificationException;
+import org.apache.maven.it.Verifier;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the server goals on large generated APIs and checks the time and heap they report stay
+ * within bounds. The bounds are generous, they catch regressions in complexity, not in constants.
+ */
+public class ServerScaleTest {
+
+  private static final long MAX_MILLIS = 60_000;
+  private static final long MAX_HEAP_BYTES = 1024L * 1024 * 1024;
+
+  @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private File buildAndVerify(GeneratedServerProject project)
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir = project.build();
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.executeGoals(
+        Arrays.asList(
+            "compile", "endpoints-framework:discoveryDocs", "endpoints-framework:openApiDocs"));
+    verifier.verifyErrorFreeLog();
+    verifier.assertFilePresent("target/openapi-docs/openapi.json");
+    return testDir;
+  }
+
+  private void assertWithinBounds(File testDir, String goal) throws IOException {
+    JsonNode report =
+        new ObjectMapper()
+            .readTree(new File(testDir, "target/endpoints-metrics/" + goal + ".json"));
+    long millis = report.get("totalMillis").asLong();
+    long heapBytes = report.get("peakHeapUsedBytes").asLong();
+    Assert.assertTrue(goal + " took " + millis + " ms", millis < MAX_MILLIS);
+    Assert.assertTrue(goal + " used " + heapBytes + " bytes of heap", heapBytes < MAX_HEAP_BYTES);
+  }
+
+  @Test
+  public void testManyApis() throws IOException, VerificationException, XmlPullParserException {
+    File testDir =
+        buildAndVerify(new GeneratedServerProject(tmpDir.getRoot()).apis(50).methods(20).beans(10));
+
+    new Verifier(testDir.getAbsolutePath())
+        .assertFilePresent("target/discovery-docs/scale49-v1-rest.discovery");
+    assertWithinBounds(testDir, "discoveryDocs");
+    assertWithinBounds(testDir, "openApiDocs");
+  }
+
+  @Test
+  public void testDeepCyclicBeans()
+      throws IOException, VerificationException, XmlPullParserException {
+    File testDir =
+        buildAndVerify(
+            new GeneratedServerProject(tmpDir.getRoot())
+                .apis(5)
+                .methods(10)
+                .beans(10)
+                .depth(20)
+                .cycles(true));
+
+    new Verifier(testDir.getAbsolutePath())
+        .assertFilePresent("target/discovery-docs/scale4-v1-rest.discovery");
+    assertWithinBounds(testDir, "discoveryDocs");
+    assertWithinBounds(testDir, "openApiDocs");
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.cloud.tools.maven.endpoints.framework;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.tools.ToolProvider;
+import org.apache.maven.it.VerificationException;
+import org.apache.maven.it.Verifier;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.matchers.JUnitMatchers;
+import org.junit.rules.TemporaryFolder;
+
+public class WatchMojoTest {
+
+  private static final String DISCOVERY_DOC_PATH =
+      "target/discovery-docs/testApi-v1-rest.discovery";
+
+  @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testTimeout() throws IOException, VerificationException, XmlPullParserException {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.watch.timeout=1");
+    verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:watch"));
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("Regenerated endpoints docs");
+    verifier.verifyTextInLog("No changes for 1 seconds, stopped watching");
+    verifier.assertFilePresent(DISCOVERY_DOC_PATH);
+    verifier.assertFilePresent("target/openapi-docs/openapi.json");
+  }
+
+  @Test
+  public void testRegenerateOnChange() throws Exception {
+    File testDir = new TestProject(tmpDir.getRoot(), "/projects/server").build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.watch.timeout=10");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> build =
+          executor.submit(
+              () -> {
+                verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:watch"));
+                return null;
+              });
+
+      // change the application id, which changes the root url of the docs
+      File log = new File(testDir, verifier.getLogFileName());
+      long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+      while (!(log.isFile()
+          && Files.toString(log, Charsets.UTF_8).contains("for changes, stop the build to end"))) {
+        Assert.assertTrue("watch did not start", System.currentTimeMillis() < deadline);
+        Thread.sleep(200);
+      }
+      File appengineWebXml = new File(testDir, "src/main/webapp/WEB-INF/appengine-web.xml");
+      String contents = Files.toString(appengineWebXml, Charsets.UTF_8);
+      Files.asCharSink(appengineWebXml, Charsets.UTF_8)
+          .write(contents.replace("<!--application-->", "<application>maven-test</application>"));
+
+      build.get(2, TimeUnit.MINUTES);
+    } finally {
+      executor.shutdownNow();
+    }
+    verifier.verifyErrorFreeLog();
+
+    String discovery = Files.toString(new File(testDir, DISCOVERY_DOC_PATH), Charsets.UTF_8);
+    Assert.assertThat(
+        discovery, JUnitMatchers.containsString("https://maven-test.appspot.com/_ah/api"));
+  }
+
+  @Test
+  public void testRegenerateAffectedApis() throws Exception {
+    File testDir = new GeneratedServerProject(tmpDir.getRoot()).apis(3).methods(2).beans(2).build();
+
+    Verifier verifier = new Verifier(testDir.getAbsolutePath());
+    verifier.addCliOption("-Dendpoints.watch.timeout=10");
+    File unchangedDoc = new File(testDir, "target/discovery-docs/scale0-v1-rest.discovery");
+    long unchangedModified;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> build =
+          executor.submit(
+              () -> {
+                verifier.executeGoals(Arrays.asList("compile", "endpoints-framework:watch"));
+                return null;
+              });
+
+      File log = new File(testDir, verifier.getLogFileName());
+      long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+      while (!(log.isFile()
+          && Files.toString(log, Charsets.UTF_8).contains("for changes, stop the build to end"))) {
+        Assert.assertTrue("watch did not start", System.currentTimeMillis() < deadline);
+        Thread.sleep(200);
+      }
+      unchangedModified = unchangedDoc.lastModified();
+
+      // a bean nested below the methods of one API, compiled on its own while watch runs
+      File bean = new File(testDir, "src/main/java/com/example/scale/Bean1x1x1.java");
+      String source = Files.toString(bean, Charsets.UTF_8);
+      Files.asCharSink(bean, Charsets.UTF_8)
+          .write(source.replace("public long count;", "public long count;\n  public int added;"));
+      int compiled =
+          ToolProvider.getSystemJavaCompiler()
+              .run(
+                  null,
+                  null,
+                  null,
+                  "-d",
+                  new File(testDir, "target/classes").getAbsolutePath(),
+                  bean.getAbsolutePath());
+      Assert.assertEquals(0, compiled);
+
+      build.get(2, TimeUnit.MINUTES);
+    } finally {
+      executor.shutdownNow();
+    }
+    verifier.verifyErrorFreeLog();
+    verifier.verifyTextInLog("3 of 4 APIs are unaffected, loading 1 of 4 service classes");
+
+    Assert.assertEquals(unchangedModified, unchangedDoc.lastModified());
+    String changedDoc =
+        Files.toString(
+            new File(testDir, "target/discovery-docs/scale1-v1-rest.discovery"), Charsets.UTF_8);
+    Assert.assertThat(changedDoc, JUnitMatchers.containsString("\"added\""));
+
+    // the OpenAPI doc combined from the models of both loads matches one loading every API
+    File openApiDoc = new File(testDir, "target/openapi-docs/openapi.json");
+    String combined = Files.toString(openApiDoc, Charsets.UTF_8);
+    Assert.assertThat(combined, JUnitMatchers.containsString("\"added\""));
+    Verifier openApi = new Verifier(testDir.getAbsolutePath());
+    openApi.setAutoclean(false);
+    openApi.setLogFileName("openapi-log.txt");
+    openApi.addCliOption("-Dendpoints.incremental=false");
+    openApi.executeGoal("endpoints-framework:openApiDocs");
+    openApi.verifyErrorFreeLog();
+    Assert.assertEquals(combined, Files.toString(openApiDoc, Charsets.UTF_8));
+  }
+}